@@ -0,0 +1,104 @@
+package org.elasql.estimator.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares predicting a batch of transactions with
+ * {@link SumMaxSequentialModel#predictNextTxnLatencies} against predicting
+ * them one by one with {@link SumMaxSequentialModel#predictNextTxnLatency}.
+ * Each invocation predicts and routes a whole batch, in which each
+ * transaction depends on the previous one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchPredictionBenchmark {
+	
+	private static final int SERVER_COUNT = 3;
+	
+	@Param({"1", "8", "64"})
+	private int batchSize;
+	
+	@Param({"8", "64"})
+	private int treeCount;
+	
+	@Param({"8"})
+	private int maxDepth;
+	
+	private SumMaxSequentialModel model;
+	
+	private Random random = new Random(1);
+	private long[] txNums;
+	private List<List<Long>> dependentTxns;
+	private long[] txnStartTimes;
+	private double[][][] serverFeatures;
+	private double[] latencies = new double[SERVER_COUNT];
+	private long lastTxNum;
+	
+	@Setup
+	public void setup() {
+		List<SingleServerMasterModel> models = BenchmarkModels.randomModels(SERVER_COUNT,
+				treeCount, maxDepth);
+		model = new SumMaxSequentialModel(models,
+				SumMaxSequentialModel.DEFAULT_END_TIME_HORIZON, batchSize);
+		
+		txNums = new long[batchSize];
+		dependentTxns = new ArrayList<List<Long>>(batchSize);
+		for (int i = 0; i < batchSize; i++)
+			dependentTxns.add(new ArrayList<Long>(1));
+		txnStartTimes = new long[batchSize];
+		serverFeatures = new double[batchSize][SERVER_COUNT][BenchmarkModels.FEATURE_COUNT];
+	}
+	
+	@Benchmark
+	public double[][] batch() {
+		nextBatch();
+		double[][] batchLatencies = model.predictNextTxnLatencies(txNums, dependentTxns,
+				txnStartTimes, serverFeatures);
+		for (long txNum : txNums)
+			model.decideTxnDest(txNum, 0);
+		return batchLatencies;
+	}
+	
+	@Benchmark
+	public double[] perCall() {
+		nextBatch();
+		for (int i = 0; i < batchSize; i++)
+			model.predictNextTxnLatency(txNums[i], dependentTxns.get(i), txnStartTimes[i],
+					serverFeatures[i], latencies);
+		for (long txNum : txNums)
+			model.decideTxnDest(txNum, 0);
+		return latencies;
+	}
+	
+	private void nextBatch() {
+		long startTime = System.nanoTime();
+		for (int i = 0; i < batchSize; i++) {
+			long txNum = ++lastTxNum;
+			txNums[i] = txNum;
+			dependentTxns.get(i).clear();
+			if (txNum > 1)
+				dependentTxns.get(i).add(txNum - 1);
+			txnStartTimes[i] = startTime;
+			BenchmarkModels.randomFeatures(random, serverFeatures[i]);
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package org.elasql.estimator.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.LongStream;
+
+import org.elasql.estimator.Constants;
+
+import smile.data.DataFrame;
+import smile.data.formula.Formula;
+import smile.data.vector.DoubleVector;
+import smile.regression.RandomForest;
+
+/**
+ * Trains the synthetic models that the benchmarks route transactions with.
+ */
+final class BenchmarkModels {
+	
+	static final int FEATURE_COUNT = 10;
+	
+	private static final int TRAINING_ROW_COUNT = 2000;
+	
+	/**
+	 * Trains a model for each server, in which each OU depends on a few
+	 * features with noise.
+	 */
+	static List<SingleServerMasterModel> randomModels(int serverCount, int treeCount,
+			int maxDepth) {
+		List<SingleServerMasterModel> models = new ArrayList<SingleServerMasterModel>();
+		for (int serverId = 0; serverId < serverCount; serverId++)
+			models.add(randomModel(new Random(serverId), treeCount, maxDepth));
+		return models;
+	}
+	
+	static void randomFeatures(Random random, double[][] serverFeatures) {
+		for (double[] features : serverFeatures) {
+			for (int i = 0; i < features.length; i++)
+				features[i] = random.nextDouble();
+		}
+	}
+	
+	private static SingleServerMasterModel randomModel(Random random, int treeCount,
+			int maxDepth) {
+		DoubleVector[] features = new DoubleVector[FEATURE_COUNT];
+		double[][] values = new double[FEATURE_COUNT][TRAINING_ROW_COUNT];
+		for (int i = 0; i < FEATURE_COUNT; i++) {
+			for (int rowId = 0; rowId < TRAINING_ROW_COUNT; rowId++)
+				values[i][rowId] = random.nextDouble();
+			features[i] = DoubleVector.of("x" + i, values[i]);
+		}
+		
+		Map<String, RandomForest> forests = new HashMap<String, RandomForest>();
+		for (int ouId = 0; ouId < Constants.OU_NAMES.length; ouId++) {
+			double[] labels = new double[TRAINING_ROW_COUNT];
+			for (int rowId = 0; rowId < TRAINING_ROW_COUNT; rowId++) {
+				labels[rowId] = 100 * values[ouId % FEATURE_COUNT][rowId]
+						+ 50 * values[(ouId + 1) % FEATURE_COUNT][rowId]
+						+ random.nextGaussian();
+			}
+			DoubleVector[] columns = Arrays.copyOf(features, FEATURE_COUNT + 1);
+			columns[FEATURE_COUNT] = DoubleVector.of(Constants.OU_NAMES[ouId], labels);
+			forests.put(Constants.OU_NAMES[ouId], RandomForest.fit(
+					Formula.lhs(Constants.OU_NAMES[ouId]), DataFrame.of(columns), treeCount,
+					FEATURE_COUNT / 3, maxDepth, 100, 5, 1.0,
+					LongStream.range(2 + ouId * treeCount, 2 + (ouId + 1) * treeCount)));
+		}
+		return new SingleServerMasterModel(forests);
+	}
+	
+	private BenchmarkModels() {
+	}
+}
@@ -0,0 +1,136 @@
+package org.elasql.estimator.model;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import smile.data.DataFrame;
+import smile.data.Tuple;
+import smile.data.formula.Formula;
+import smile.data.vector.BaseVector;
+import smile.data.vector.BooleanVector;
+import smile.data.vector.DoubleVector;
+import smile.regression.RandomForest;
+
+/**
+ * Compares the predictions of a Smile random forest with the compiled one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompiledForestBenchmark {
+	
+	private static final int TRAINING_ROW_COUNT = 5000;
+	private static final int DOUBLE_FEATURE_COUNT = 20;
+	private static final int BOOLEAN_FEATURE_COUNT = 2;
+	private static final int QUERY_COUNT = 256;
+	
+	@Param({"8", "32"})
+	private int treeCount;
+	
+	@Param({"6", "12"})
+	private int maxDepth;
+	
+	private RandomForest forest;
+	private CompiledForest compiledForest;
+	private Tuple[] tuples;
+	private double[][] vectors;
+	private double[] values;
+	
+	@Setup
+	public void setup() {
+		DataFrame df = randomDataFrame(new Random(1));
+		forest = RandomForest.fit(Formula.lhs("y"), df, treeCount, (df.ncols() - 1) / 3,
+				maxDepth, 100, 5, 1.0, LongStream.range(2, 2 + treeCount));
+		compiledForest = CompiledForest.compile(forest);
+		
+		tuples = new Tuple[QUERY_COUNT];
+		vectors = new double[QUERY_COUNT][];
+		for (int i = 0; i < QUERY_COUNT; i++) {
+			tuples[i] = df.get(i);
+			vectors[i] = toVector(tuples[i]);
+		}
+		values = new double[QUERY_COUNT];
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(QUERY_COUNT)
+	public double smilePredict() {
+		double sum = 0.0;
+		for (Tuple tuple : tuples)
+			sum += forest.predict(tuple);
+		return sum;
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(QUERY_COUNT)
+	public double compiledPredict() {
+		double sum = 0.0;
+		for (double[] vector : vectors)
+			sum += compiledForest.predict(vector);
+		return sum;
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(QUERY_COUNT)
+	public double[] compiledBatchPredict() {
+		compiledForest.predict(vectors, values);
+		return values;
+	}
+	
+	private double[] toVector(Tuple tuple) {
+		double[] vector = new double[forest.schema().length()];
+		for (int i = 0; i < vector.length; i++) {
+			if (forest.schema().field(i).type.isBoolean())
+				vector[i] = tuple.getBoolean(forest.schema().field(i).name)? 1.0 : 0.0;
+			else
+				vector[i] = tuple.getDouble(forest.schema().field(i).name);
+		}
+		return vector;
+	}
+	
+	// The label depends on a few features, as the latencies of the OUs do
+	private static DataFrame randomDataFrame(Random random) {
+		BaseVector<?, ?, ?>[] columns = new BaseVector<?, ?, ?>[
+				DOUBLE_FEATURE_COUNT + BOOLEAN_FEATURE_COUNT + 1];
+		double[] y = new double[TRAINING_ROW_COUNT];
+		for (int i = 0; i < DOUBLE_FEATURE_COUNT; i++) {
+			double[] x = new double[TRAINING_ROW_COUNT];
+			for (int rowId = 0; rowId < TRAINING_ROW_COUNT; rowId++) {
+				x[rowId] = random.nextDouble() * 100;
+				if (i < 4)
+					y[rowId] += x[rowId] * (i + 1);
+			}
+			columns[i] = DoubleVector.of("x" + i, x);
+		}
+		for (int i = 0; i < BOOLEAN_FEATURE_COUNT; i++) {
+			boolean[] b = new boolean[TRAINING_ROW_COUNT];
+			for (int rowId = 0; rowId < TRAINING_ROW_COUNT; rowId++) {
+				b[rowId] = random.nextBoolean();
+				if (b[rowId])
+					y[rowId] += 100;
+			}
+			columns[DOUBLE_FEATURE_COUNT + i] = BooleanVector.of("b" + i, b);
+		}
+		for (int rowId = 0; rowId < TRAINING_ROW_COUNT; rowId++)
+			y[rowId] += random.nextGaussian() * 10;
+		columns[columns.length - 1] = DoubleVector.of("y", y);
+		return DataFrame.of(columns);
+	}
+}
@@ -0,0 +1,97 @@
+package org.elasql.estimator.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the latency percentiles of routing a transaction with and without
+ * {@link SumMaxSequentialModel#parallelizeServers}, over the number of the
+ * servers and the size of the models. The prediction cost of each setting is
+ * printed, so the percentiles can be compared against
+ * {@link SumMaxSequentialModel#DEFAULT_PARALLEL_MIN_COST}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParallelServersBenchmark {
+	
+	@Param({"2", "4", "8"})
+	private int serverCount;
+	
+	@Param({"4", "16", "64"})
+	private int treeCount;
+	
+	@Param({"6", "12"})
+	private int maxDepth;
+	
+	@Param({"false", "true"})
+	private boolean parallel;
+	
+	private SumMaxSequentialModel model;
+	private ForkJoinPool pool;
+	
+	private Random random = new Random(1);
+	private double[][] serverFeatures;
+	private double[] latencies;
+	private List<Long> dependentTxns = new ArrayList<Long>();
+	private long txNum;
+	
+	@Setup
+	public void setup() {
+		List<SingleServerMasterModel> models = BenchmarkModels.randomModels(serverCount,
+				treeCount, maxDepth);
+		model = new SumMaxSequentialModel(models);
+		
+		double predictionCost = 0.0;
+		for (SingleServerMasterModel serverModel : models)
+			predictionCost += serverModel.predictionCost(SumMaxSequentialModel.PREDICTED_OUS);
+		System.out.printf("Prediction cost: %.0f nodes%n", predictionCost);
+		
+		if (parallel) {
+			pool = new ForkJoinPool(serverCount);
+			model.parallelizeServers(pool, 0.0);
+		}
+		
+		serverFeatures = new double[serverCount][BenchmarkModels.FEATURE_COUNT];
+		latencies = new double[serverCount];
+	}
+	
+	@TearDown
+	public void tearDown() {
+		if (pool != null)
+			pool.shutdown();
+	}
+	
+	@Benchmark
+	public double[] routeTxn() {
+		txNum++;
+		BenchmarkModels.randomFeatures(random, serverFeatures);
+		dependentTxns.clear();
+		if (txNum > 1)
+			dependentTxns.add(txNum - 1);
+		
+		model.predictNextTxnLatency(txNum, dependentTxns, System.nanoTime(), serverFeatures,
+				latencies);
+		model.decideLastTxnDest(txNum, 0);
+		return latencies;
+	}
+}
@@ -0,0 +1,146 @@
+package org.elasql.estimator.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the throughput of routing transactions on multiple threads with
+ * {@link ConcurrentSumMaxModel} and with a {@link SumMaxSequentialModel}
+ * shared under a lock. Run {@link #main} to measure 1 to 32 threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SumMaxModelBenchmark {
+	
+	private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32};
+	
+	private static final int SERVER_COUNT = 3;
+	private static final int DEPENDENCY_COUNT = 2;
+	
+	@State(Scope.Benchmark)
+	public static class Models {
+		
+		@Param({"8"})
+		private int treeCount;
+		
+		@Param({"8"})
+		private int maxDepth;
+		
+		private ConcurrentSumMaxModel concurrentModel;
+		private SumMaxSequentialModel sequentialModel;
+		private long lastSequentialTxNum;
+		
+		@Setup
+		public void setup() {
+			List<SingleServerMasterModel> models = BenchmarkModels.randomModels(SERVER_COUNT,
+					treeCount, maxDepth);
+			concurrentModel = new ConcurrentSumMaxModel(models);
+			sequentialModel = new SumMaxSequentialModel(models);
+		}
+	}
+	
+	@State(Scope.Thread)
+	public static class Transactions {
+		
+		private Random random = new Random();
+		private double[][] serverFeatures =
+				new double[SERVER_COUNT][BenchmarkModels.FEATURE_COUNT];
+		private double[] latencies = new double[SERVER_COUNT];
+		private List<Long> dependentTxns = new ArrayList<Long>();
+		
+		// Each thread routes every threadCount-th transaction, so that the
+		// transactions it depends on have been routed by itself
+		private long nextTxNum;
+		private int threadCount;
+		
+		@Setup
+		public void setup(ThreadParams params) {
+			nextTxNum = params.getThreadIndex() + 1;
+			threadCount = params.getThreadCount();
+		}
+		
+		void nextFeatures() {
+			BenchmarkModels.randomFeatures(random, serverFeatures);
+		}
+		
+		void dependOnPreviousTxns(long txNum, long txNumStep) {
+			dependentTxns.clear();
+			for (int i = 1; i <= DEPENDENCY_COUNT; i++) {
+				long dependentTxn = txNum - i * txNumStep;
+				if (dependentTxn > 0)
+					dependentTxns.add(dependentTxn);
+			}
+		}
+	}
+	
+	@Benchmark
+	public double[] concurrentModel(Models models, Transactions txns) {
+		long txNum = txns.nextTxNum;
+		txns.nextTxNum += txns.threadCount;
+		txns.nextFeatures();
+		txns.dependOnPreviousTxns(txNum, txns.threadCount);
+		
+		models.concurrentModel.predictTxnLatency(txNum, txns.dependentTxns,
+				System.nanoTime(), txns.serverFeatures, txns.latencies);
+		models.concurrentModel.decideTxnDest(txNum, minIndex(txns.latencies));
+		return txns.latencies;
+	}
+	
+	@Benchmark
+	public double[] lockedSequentialModel(Models models, Transactions txns) {
+		txns.nextFeatures();
+		
+		// The transactions must be fed in order, so the numbers are
+		// assigned under the lock
+		synchronized (models) {
+			long txNum = ++models.lastSequentialTxNum;
+			txns.dependOnPreviousTxns(txNum, 1);
+			
+			models.sequentialModel.predictNextTxnLatency(txNum, txns.dependentTxns,
+					System.nanoTime(), txns.serverFeatures, txns.latencies);
+			models.sequentialModel.decideLastTxnDest(txNum, minIndex(txns.latencies));
+		}
+		return txns.latencies;
+	}
+	
+	public static void main(String[] args) throws RunnerException {
+		for (int threadCount : THREAD_COUNTS) {
+			Options options = new OptionsBuilder()
+					.include(SumMaxModelBenchmark.class.getSimpleName())
+					.threads(threadCount)
+					.build();
+			new Runner(options).run();
+		}
+	}
+	
+	private static int minIndex(double[] values) {
+		int minIndex = 0;
+		for (int i = 1; i < values.length; i++) {
+			if (values[i] < values[minIndex])
+				minIndex = i;
+		}
+		return minIndex;
+	}
+}
@@ -2,7 +2,9 @@ package org.elasql.estimator;
 
 import java.io.File;
 
+import org.elasql.estimator.model.GridSearcher;
 import org.elasql.estimator.model.ModelParameters;
+import org.elasql.estimator.model.SumMaxSequentialModel;
 
 import com.moandjiezana.toml.Toml;
 
@@ -13,6 +15,16 @@ public class Config {
 	private long dataStartTime;
 	private long dataEndTime;
 	private int crossValidationFold;
+	private GridSearcher.SearchMode gridSearchMode;
+	private int loaderThreads;
+	private int trainingThreads;
+	private long randomSeed;
+	private int parallelServers;
+	private int memoryBudgetMb;
+	private int sumMaxEndTimeHorizon;
+	private int sumMaxRoutingWindow;
+	private int sumMaxServerThreads;
+	private double sumMaxParallelMinCost;
 	private ModelParameters modelParameters;
 	
 	public static Config load(File file) {
@@ -24,6 +36,27 @@ public class Config {
 		config.dataStartTime = toml.getTable("global").getLong("data_start_time").longValue();
 		config.dataEndTime = toml.getTable("global").getLong("data_end_time").longValue();
 		config.crossValidationFold = toml.getTable("global").getLong("cross_validation_fold").intValue();
+		config.gridSearchMode = GridSearcher.SearchMode.fromName(
+				toml.getTable("global").getString("grid_search_mode", "full"));
+		config.loaderThreads = toml.getTable("global").getLong("loader_threads", 1L).intValue();
+		config.trainingThreads = toml.getTable("global").getLong("training_threads",
+				(long) Runtime.getRuntime().availableProcessors()).intValue();
+		config.randomSeed = toml.getTable("global").getLong("random_seed", 0L).longValue();
+		config.parallelServers = toml.getTable("global").getLong("parallel_servers", 1L).intValue();
+		// The max memory is Long.MAX_VALUE if the heap is not bounded
+		long memoryBudgetMb = toml.getTable("global").getLong("memory_budget_mb",
+				Math.min(Runtime.getRuntime().maxMemory() / (1024 * 1024), Integer.MAX_VALUE));
+		if (memoryBudgetMb < 1 || memoryBudgetMb > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("The memory budget must be in [1, "
+					+ Integer.MAX_VALUE + "] MB: " + memoryBudgetMb);
+		config.memoryBudgetMb = (int) memoryBudgetMb;
+		config.sumMaxEndTimeHorizon = toml.getTable("global").getLong("sum_max_end_time_horizon",
+				(long) SumMaxSequentialModel.DEFAULT_END_TIME_HORIZON).intValue();
+		config.sumMaxRoutingWindow = toml.getTable("global").getLong("sum_max_routing_window",
+				(long) SumMaxSequentialModel.DEFAULT_ROUTING_WINDOW).intValue();
+		config.sumMaxServerThreads = toml.getTable("global").getLong("sum_max_server_threads", 1L).intValue();
+		config.sumMaxParallelMinCost = toml.getTable("global").getDouble("sum_max_parallel_min_cost",
+				SumMaxSequentialModel.DEFAULT_PARALLEL_MIN_COST).doubleValue();
 		
 		ModelParameters.Builder mpBuilder = new ModelParameters.Builder();
 		for (Toml table : toml.getTable("global").getTables("model_parameters")) {
@@ -58,6 +91,46 @@ public class Config {
 		return crossValidationFold;
 	}
 	
+	public GridSearcher.SearchMode gridSearchMode() {
+		return gridSearchMode;
+	}
+	
+	public int loaderThreads() {
+		return loaderThreads;
+	}
+	
+	public int trainingThreads() {
+		return trainingThreads;
+	}
+	
+	public long randomSeed() {
+		return randomSeed;
+	}
+	
+	public int parallelServers() {
+		return parallelServers;
+	}
+	
+	public int memoryBudgetMb() {
+		return memoryBudgetMb;
+	}
+	
+	public int sumMaxEndTimeHorizon() {
+		return sumMaxEndTimeHorizon;
+	}
+	
+	public int sumMaxRoutingWindow() {
+		return sumMaxRoutingWindow;
+	}
+	
+	public int sumMaxServerThreads() {
+		return sumMaxServerThreads;
+	}
+	
+	public double sumMaxParallelMinCost() {
+		return sumMaxParallelMinCost;
+	}
+	
 	public ModelParameters modelParameters() {
 		return modelParameters;
 	}
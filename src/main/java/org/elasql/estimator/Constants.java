@@ -29,4 +29,5 @@ public class Constants {
 	public static final String FILE_NAME_FEATURE = "transaction-features";
 	public static final String FILE_NAME_LATENCY_PREFIX = "transaction-latency-server";
 	public static final String FILE_NAME_DEPENDENCY = "transaction-dependencies.txt";
+	public static final String FILE_NAME_DEPENDENCY_BINARY = "transaction-dependencies.bin";
 }
@@ -4,17 +4,25 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.elasql.estimator.data.ColumnarFile;
+import org.elasql.estimator.data.ColumnarTable;
+import org.elasql.estimator.data.CsvLoader;
 import org.elasql.estimator.data.TotalLatencyDataSet;
+import org.elasql.estimator.data.TransactionDependencies;
 import org.elasql.estimator.data.OuDataSet;
+import org.elasql.estimator.model.GridSearchJournal;
 import org.elasql.estimator.model.GridSearcher;
 import org.elasql.estimator.model.SingleServerMasterModel;
 import org.elasql.estimator.model.SumMaxSequentialModel;
 import org.elasql.estimator.model.evaluator.OuModelEvaluator;
 import org.elasql.estimator.model.evaluator.SumMaxModelEvaluator;
+import org.elasql.estimator.utils.ServerJobScheduler;
 
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
@@ -40,7 +48,8 @@ public class EntryPoint {
 	@Command(name = "grid-search", mixinStandardHelpOptions = true)
 	public int gridSearch(
 			@Parameters(paramLabel = "DATA_SET_DIR", description = "path to the data set") File dataSetDir,
-			@Parameters(paramLabel = "MODEL_SAVE_DIR", description = "path to save the model") File modelSaveDir
+			@Parameters(paramLabel = "MODEL_SAVE_DIR", description = "path to save the model") File modelSaveDir,
+			@Option(names = "--resume", description = "resume from the progress saved in MODEL_SAVE_DIR") boolean resume
 		) {
 		
 		// Ensure that the output directory exists
@@ -59,44 +68,48 @@ public class EntryPoint {
 		
 		List<OuDataSet> dataSets = OuDataSet.loadFromRawData(config.serverNum(),
 				config.dataStartTime(), config.dataEndTime(), config.outlinerStdThreshold(),
-				dataSetDir);
+				config.loaderThreads(), dataSetDir);
 		
 		if (logger.isLoggable(Level.INFO))
 			logger.info("All data are loaded and processed.");
 		
-		// For each server
-		OuModelEvaluator evaluator = null;
-		for (int serverId = 0; serverId < dataSets.size(); serverId++) {
-			OuDataSet dataSet = dataSets.get(serverId);
-			
-			// Train a master model for each server
-			if (logger.isLoggable(Level.INFO))
-				logger.info(String.format("Grid searching best parameters for the model of server #%d (data set size: %d)...",
-						serverId, dataSet.size()));
-			
-			GridSearcher modelTrainer = new GridSearcher(config.crossValidationFold());
-			SingleServerMasterModel model = modelTrainer.gridSearch(dataSet);
-			modelTrainer.generateTrainingReport(new File("grid-search-" + serverId + ".csv"));
-			
-			if (logger.isLoggable(Level.INFO))
-				logger.info("Training models for server #" + serverId + " completed");
-			
-			// Evaluate the model
-			if (evaluator == null) {
-				StructType featureSchema = model.schema();
-				evaluator = OuModelEvaluator.newWithFeatureSchema(featureSchema);
-			}
-			evaluator.evaluateModel(serverId, dataSet, model);
-			
-			// Save the model
-			try {
-				File modelFilePath = new File(modelSaveDir, "model-" + serverId + ".bin");
-				model.saveToFile(modelFilePath);
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
+		// Search the models of the servers concurrently. All the servers
+		// share a pool for training.
+		ServerJobScheduler scheduler = newScheduler(config);
+		ForkJoinPool trainingPool = new ForkJoinPool(config.trainingThreads());
+		SingleServerMasterModel[] models = new SingleServerMasterModel[dataSets.size()];
+		
+		// Save the progress, so that the search can be resumed
+		try (GridSearchJournal journal = GridSearchJournal.open(modelSaveDir, resume)) {
+			scheduler.runAll(dataSets.size(), serverId -> estimateTrainingMemory(dataSets.get(serverId)),
+					serverId -> {
+				OuDataSet dataSet = dataSets.get(serverId);
+				
+				// Train a master model for each server
+				if (logger.isLoggable(Level.INFO))
+					logger.info(String.format("Grid searching best parameters for the model of server #%d (data set size: %d)...",
+							serverId, dataSet.size()));
+				
+				GridSearcher modelTrainer = new GridSearcher(config.crossValidationFold(),
+						config.gridSearchMode(), trainingPool, journal, serverId,
+						config.randomSeed());
+				SingleServerMasterModel model = modelTrainer.gridSearch(dataSet);
+				modelTrainer.generateTrainingReport(new File("grid-search-" + serverId + ".csv"));
+				
+				if (logger.isLoggable(Level.INFO))
+					logger.info("Training models for server #" + serverId + " completed");
+				
+				// Save the model
+				saveModel(model, new File(modelSaveDir, "model-" + serverId + ".bin"));
+				models[serverId] = model;
+			});
+		} finally {
+			trainingPool.shutdown();
 		}
 		
+		// Evaluate the models
+		OuModelEvaluator evaluator = evaluateModels(scheduler, dataSets, models);
+		
 		// Save the report
 		evaluator.generateReport(new File("training-report.csv"));
 		
@@ -125,42 +138,43 @@ public class EntryPoint {
 		
 		List<OuDataSet> dataSets = OuDataSet.loadFromRawData(config.serverNum(),
 				config.dataStartTime(), config.dataEndTime(), config.outlinerStdThreshold(),
-				dataSetDir);
+				config.loaderThreads(), dataSetDir);
 		
 		if (logger.isLoggable(Level.INFO))
 			logger.info("All data are loaded and processed.");
 		
-		// For each server
-		OuModelEvaluator evaluator = null;
-		for (int serverId = 0; serverId < dataSets.size(); serverId++) {
-			OuDataSet dataSet = dataSets.get(serverId);
-			
-			// Train a master model for each server
-			if (logger.isLoggable(Level.INFO))
-				logger.info(String.format("Training models for server #%d (data set size: %d)...",
-						serverId, dataSet.size()));
-			
-			SingleServerMasterModel model = SingleServerMasterModel.fit(dataSet, config.modelParameters());
-			
-			if (logger.isLoggable(Level.INFO))
-				logger.info("Training models for server #" + serverId + " completed");
-			
-			// Evaluate the model
-			if (evaluator == null) {
-				StructType featureSchema = model.schema();
-				evaluator = OuModelEvaluator.newWithFeatureSchema(featureSchema);
-			}
-			evaluator.evaluateModel(serverId, dataSet, model);
-			
-			// Save the model
-			try {
-				File modelFilePath = new File(modelSaveDir, "model-" + serverId + ".bin");
-				model.saveToFile(modelFilePath);
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
+		// Train the models of the servers concurrently. All the servers
+		// share a pool for training.
+		ServerJobScheduler scheduler = newScheduler(config);
+		ForkJoinPool trainingPool = new ForkJoinPool(config.trainingThreads());
+		SingleServerMasterModel[] models = new SingleServerMasterModel[dataSets.size()];
+		try {
+			scheduler.runAll(dataSets.size(), serverId -> estimateTrainingMemory(dataSets.get(serverId)),
+					serverId -> {
+				OuDataSet dataSet = dataSets.get(serverId);
+				
+				// Train a master model for each server
+				if (logger.isLoggable(Level.INFO))
+					logger.info(String.format("Training models for server #%d (data set size: %d)...",
+							serverId, dataSet.size()));
+				
+				SingleServerMasterModel model = SingleServerMasterModel.fit(dataSet,
+						config.modelParameters(), trainingPool, config.randomSeed());
+				
+				if (logger.isLoggable(Level.INFO))
+					logger.info("Training models for server #" + serverId + " completed");
+				
+				// Save the model
+				saveModel(model, new File(modelSaveDir, "model-" + serverId + ".bin"));
+				models[serverId] = model;
+			});
+		} finally {
+			trainingPool.shutdown();
 		}
 		
+		// Evaluate the models
+		OuModelEvaluator evaluator = evaluateModels(scheduler, dataSets, models);
+		
 		// Save the report
 		evaluator.generateReport(new File("training-report.csv"));
 		
@@ -189,23 +203,27 @@ public class EntryPoint {
 		
 		List<OuDataSet> dataSets = OuDataSet.loadFromRawData(config.serverNum(),
 				config.dataStartTime(), config.dataEndTime(), config.outlinerStdThreshold(),
-				dataSetDir);
+				config.loaderThreads(), dataSetDir);
 		
 		if (logger.isLoggable(Level.INFO))
 			logger.info("All data are loaded and processed.");
 		
 		// Merge the data sets
-		OuDataSet globalSet = dataSets.get(0);
-		for (int i = 1; i < dataSets.size(); i++) {
-			globalSet = globalSet.union(dataSets.get(i));
-		}
+		OuDataSet globalSet = OuDataSet.concat(dataSets);
 		
 		// Train a global model
 		if (logger.isLoggable(Level.INFO))
 			logger.info(String.format("Training a global model (data set size: %d)...",
 					globalSet.size()));
 		
-		SingleServerMasterModel model = SingleServerMasterModel.fit(globalSet, config.modelParameters());
+		ForkJoinPool trainingPool = new ForkJoinPool(config.trainingThreads());
+		SingleServerMasterModel model;
+		try {
+			model = SingleServerMasterModel.fit(globalSet, config.modelParameters(),
+					trainingPool, config.randomSeed());
+		} finally {
+			trainingPool.shutdown();
+		}
 		
 		if (logger.isLoggable(Level.INFO))
 			logger.info("Training a global model completed");
@@ -243,7 +261,7 @@ public class EntryPoint {
 		// Load the data set
 		List<OuDataSet> dataSets = OuDataSet.loadFromRawData(config.serverNum(),
 				config.dataStartTime(), config.dataEndTime(), config.outlinerStdThreshold(),
-				dataSetDir);
+				config.loaderThreads(), dataSetDir);
 		
 		// Load the models
 		List<SingleServerMasterModel> models = new ArrayList<SingleServerMasterModel>();
@@ -263,16 +281,9 @@ public class EntryPoint {
 		if (logger.isLoggable(Level.INFO))
 			logger.info("Testing the models...");
 		
-		// Test the model with data set
-		StructType featureSchema = models.get(0).schema();
-		OuModelEvaluator evaluator = OuModelEvaluator.newWithFeatureSchema(featureSchema);
-		for (int serverId = 0; serverId < config.serverNum(); serverId++) {
-			OuDataSet dataSet = dataSets.get(serverId);
-			SingleServerMasterModel model = models.get(serverId);
-			
-			// Evaluate the model
-			evaluator.evaluateModel(serverId, dataSet, model);
-		}
+		// Test the models with data set
+		OuModelEvaluator evaluator = evaluateModels(newScheduler(config), dataSets,
+				models.toArray(new SingleServerMasterModel[0]));
 		
 		if (logger.isLoggable(Level.INFO))
 			logger.info("Testing completed. Generating a report...");
@@ -301,13 +312,10 @@ public class EntryPoint {
 		// Load the data set
 		List<OuDataSet> dataSets = OuDataSet.loadFromRawData(config.serverNum(),
 				config.dataStartTime(), config.dataEndTime(), config.outlinerStdThreshold(),
-				dataSetDir);
+				config.loaderThreads(), dataSetDir);
 		
 		// Merge the data sets
-		OuDataSet globalSet = dataSets.get(0);
-		for (int i = 1; i < dataSets.size(); i++) {
-			globalSet = globalSet.union(dataSets.get(i));
-		}
+		OuDataSet globalSet = OuDataSet.concat(dataSets);
 		
 		// Load the models
 		SingleServerMasterModel model = null;
@@ -355,7 +363,7 @@ public class EntryPoint {
 		
 		// Load the data set
 		TotalLatencyDataSet dataSet = TotalLatencyDataSet.load(
-				dataSetDir, config.serverNum());
+				dataSetDir, config.serverNum(), config.loaderThreads());
 		
 		// Load the models
 		List<SingleServerMasterModel> models = new ArrayList<SingleServerMasterModel>();
@@ -370,7 +378,16 @@ public class EntryPoint {
 		}
 		
 		// Create a sum-max model
-		SumMaxSequentialModel sumMaxModel = new SumMaxSequentialModel(models);
+		SumMaxSequentialModel sumMaxModel = new SumMaxSequentialModel(models,
+				config.sumMaxEndTimeHorizon(), config.sumMaxRoutingWindow());
+		ForkJoinPool serverPool = null;
+		if (config.sumMaxServerThreads() > 1) {
+			serverPool = new ForkJoinPool(config.sumMaxServerThreads());
+			boolean parallel = sumMaxModel.parallelizeServers(serverPool, config.sumMaxParallelMinCost());
+			if (logger.isLoggable(Level.INFO))
+				logger.info(parallel? "The servers are predicted in parallel" :
+					"The models are too small to predict the servers in parallel");
+		}
 		
 		if (logger.isLoggable(Level.INFO))
 			logger.info("All the data and models are loaded");
@@ -380,7 +397,12 @@ public class EntryPoint {
 		
 		// Perform model evaluation (need a evaluator)
 		SumMaxModelEvaluator evaluator = SumMaxModelEvaluator.newWithServerNumber(config.serverNum());
-		evaluator.evaluateModel(dataSet, sumMaxModel);
+		try {
+			evaluator.evaluateModel(dataSet, sumMaxModel);
+		} finally {
+			if (serverPool != null)
+				serverPool.shutdown();
+		}
 		
 		if (logger.isLoggable(Level.INFO))
 			logger.info("Testing completed. Generating a report...");
@@ -393,4 +415,87 @@ public class EntryPoint {
 		
 		return 0;
 	}
+	
+	@Command(name = "convert", mixinStandardHelpOptions = true,
+			description = "convert a raw data set to a binary columnar format for faster loading")
+	public int convert(
+			@Parameters(paramLabel = "DATA_SET_DIR", description = "path to the raw data set") File dataSetDir,
+			@Parameters(paramLabel = "OUTPUT_DIR", description = "path to save the converted data set") File outputDir
+		) {
+		
+		// Ensure that the output directory exists
+		try {
+			Files.createDirectories(outputDir.toPath());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		
+		// Load the configurations
+		Config config = Config.load(configFile);
+		
+		if (logger.isLoggable(Level.INFO))
+			logger.info("Converting the data set...");
+		
+		// Convert the feature file
+		convertCsvFile(dataSetDir, outputDir, Constants.FILE_NAME_FEATURE,
+				config.loaderThreads());
+		
+		// Convert the latency files
+		for (int serverId = 0; serverId < config.serverNum(); serverId++) {
+			String fileName = String.format("%s-%d",
+					Constants.FILE_NAME_LATENCY_PREFIX, serverId);
+			convertCsvFile(dataSetDir, outputDir, fileName, config.loaderThreads());
+		}
+		
+		// Convert the dependency file
+		TransactionDependencies dependencies = TransactionDependencies.load(
+				new File(dataSetDir, Constants.FILE_NAME_DEPENDENCY));
+		dependencies.saveAsBinary(new File(outputDir, Constants.FILE_NAME_DEPENDENCY_BINARY));
+		
+		if (logger.isLoggable(Level.INFO))
+			logger.info("The converted data set is saved to '" + outputDir + "'");
+		
+		return 0;
+	}
+	
+	private static ServerJobScheduler newScheduler(Config config) {
+		return new ServerJobScheduler(config.parallelServers(), config.memoryBudgetMb());
+	}
+	
+	/**
+	 * Evaluates the model of each server concurrently.
+	 */
+	private static OuModelEvaluator evaluateModels(ServerJobScheduler scheduler,
+			List<OuDataSet> dataSets, SingleServerMasterModel[] models) {
+		OuModelEvaluator evaluator = OuModelEvaluator.newWithFeatureSchema(models[0].schema());
+		scheduler.runAll(models.length, serverId -> estimateFeatureMemory(dataSets.get(serverId)),
+				serverId -> evaluator.evaluateModel(serverId, dataSets.get(serverId), models[serverId]));
+		return evaluator;
+	}
+	
+	// The model of each OU copies the features for training
+	private static long estimateTrainingMemory(OuDataSet dataSet) {
+		return estimateFeatureMemory(dataSet) * Constants.OU_NAMES.length;
+	}
+	
+	private static long estimateFeatureMemory(OuDataSet dataSet) {
+		return (long) dataSet.size() * dataSet.getFeatures().ncols() * Double.BYTES;
+	}
+	
+	private static void saveModel(SingleServerMasterModel model, File modelFilePath) {
+		try {
+			model.saveToFile(modelFilePath);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static void convertCsvFile(File dataSetDir, File outputDir, String fileName,
+			int loaderThreads) {
+		File csvFile = new File(dataSetDir, fileName + ".csv");
+		File binaryFile = new File(outputDir, fileName + ColumnarFile.FILE_EXTENSION);
+		ColumnarTable table = CsvLoader.loadTable(csvFile.toPath(),
+				Collections.emptyList(), loaderThreads);
+		ColumnarFile.write(table, binaryFile);
+	}
 }
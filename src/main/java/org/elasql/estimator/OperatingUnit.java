@@ -0,0 +1,22 @@
+package org.elasql.estimator;
+
+/**
+ * The operating units (OUs) of a transaction. The ordinal of an OU is its
+ * index in {@link Constants#OU_NAMES}.
+ */
+public enum OperatingUnit {
+	OU0_BROADCAST,
+	OU0_ROUTE,
+	OU1_GENERATE_PLAN,
+	OU2_INITIALIZE_THREAD,
+	OU3_ACQUIRE_LOCKS,
+	OU4_READ_FROM_LOCAL,
+	OU5M_READ_FROM_REMOTE,
+	OU6_EXECUTE_ARITHMETIC_LOGIC,
+	OU7_WRITE_TO_LOCAL,
+	OU8_COMMIT;
+	
+	public String ouName() {
+		return Constants.OU_NAMES[ordinal()];
+	}
+}
@@ -0,0 +1,481 @@
+package org.elasql.estimator.data;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import smile.data.type.DataTypes;
+import smile.data.type.StructField;
+import smile.data.vector.BaseVector;
+import smile.data.vector.BooleanVector;
+import smile.data.vector.DoubleVector;
+import smile.data.vector.LongVector;
+import smile.data.vector.Vector;
+
+/**
+ * A growable column that stores the values of a field in primitive arrays,
+ * so that loading a file does not create an object for each cell.
+ */
+public abstract class ColumnBuffer {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	// Estimated sizes of boxed objects (with compressed references)
+	private static final int REFERENCE_SIZE = 4;
+	private static final int BOXED_NUMBER_SIZE = 16;
+	private static final int ARRAY_HEADER_SIZE = 16;
+
+	public static ColumnBuffer newBuffer(StructField field) {
+		if (field.type == DataTypes.LongType)
+			return new LongColumn(field);
+		else if (field.type == DataTypes.BooleanType)
+			return new BooleanColumn(field);
+		else if (field.type == DataTypes.DoubleType)
+			return new DoubleColumn(field);
+		else if (field.type == DataTypes.DoubleArrayType)
+			return new DoubleArrayColumn(field);
+		else
+			throw new IllegalArgumentException("Unsupported type '" + field.type +
+					"' for field '" + field.name + "'");
+	}
+
+	protected final StructField field;
+	protected int size;
+
+	protected ColumnBuffer(StructField field) {
+		this.field = field;
+	}
+
+	public StructField field() {
+		return field;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Parses the given string and appends the value to the end of the column.
+	 */
+	public abstract void append(String value);
+
+	/**
+	 * Appends a value for a missing cell. We assume the missing values are
+	 * all double values.
+	 */
+	public void appendMissing() {
+		throw new RuntimeException("Don't know how to fill values for '" +
+				field.name + "'");
+	}
+
+	/**
+	 * Appends all the values of the given column, which must have the same type.
+	 */
+	public abstract void appendAll(ColumnBuffer other);
+
+	/**
+	 * Returns a new column that contains the given rows in the given order.
+	 */
+	public abstract ColumnBuffer select(int[] rowIds);
+
+	/**
+	 * Drops the rows after the given number of rows.
+	 */
+	public void truncate(int newSize) {
+		if (newSize < size)
+			size = newSize;
+	}
+
+	/**
+	 * Returns the value of the given row as an object.
+	 */
+	public abstract Object getObject(int rowId);
+
+	/**
+	 * Wraps the values into a Smile vector.
+	 */
+	public abstract BaseVector<?, ?, ?> toVector();
+
+	/**
+	 * The number of bytes that a row takes in this column.
+	 */
+	public abstract double bytesPerRow();
+
+	/**
+	 * The estimated number of bytes that a row takes if the value
+	 * is saved as a boxed object in a tuple.
+	 */
+	public abstract double boxedBytesPerRow();
+
+	protected static int grow(int capacity, int required) {
+		return Math.max(required, Math.max(INITIAL_CAPACITY, capacity * 2));
+	}
+
+	public static class LongColumn extends ColumnBuffer {
+		private long[] values = new long[0];
+
+		LongColumn(StructField field) {
+			super(field);
+		}
+
+		@Override
+		public void append(String value) {
+			add(Long.parseLong(value));
+		}
+
+		public void add(long value) {
+			ensureCapacity(size + 1);
+			values[size++] = value;
+		}
+
+		@Override
+		public void appendAll(ColumnBuffer other) {
+			LongColumn column = (LongColumn) other;
+			ensureCapacity(size + column.size);
+			System.arraycopy(column.values, 0, values, size, column.size);
+			size += column.size;
+		}
+
+		@Override
+		public ColumnBuffer select(int[] rowIds) {
+			long[] selected = new long[rowIds.length];
+			for (int i = 0; i < rowIds.length; i++)
+				selected[i] = values[rowIds[i]];
+			LongColumn column = new LongColumn(field);
+			column.wrap(selected, selected.length);
+			return column;
+		}
+
+		void wrap(long[] values, int size) {
+			this.values = values;
+			this.size = size;
+		}
+
+		public long get(int rowId) {
+			return values[rowId];
+		}
+
+		@Override
+		public Object getObject(int rowId) {
+			return values[rowId];
+		}
+
+		/**
+		 * Returns the backing array. Only the first {@link #size()} values are valid.
+		 */
+		public long[] array() {
+			return values;
+		}
+
+		@Override
+		public BaseVector<?, ?, ?> toVector() {
+			return LongVector.of(field, Arrays.copyOf(values, size));
+		}
+
+		@Override
+		public double bytesPerRow() {
+			return Long.BYTES;
+		}
+
+		@Override
+		public double boxedBytesPerRow() {
+			return BOXED_NUMBER_SIZE + REFERENCE_SIZE;
+		}
+
+		private void ensureCapacity(int rowCount) {
+			if (rowCount > values.length)
+				values = Arrays.copyOf(values, grow(values.length, rowCount));
+		}
+	}
+
+	public static class DoubleColumn extends ColumnBuffer {
+		private double[] values = new double[0];
+
+		DoubleColumn(StructField field) {
+			super(field);
+		}
+
+		@Override
+		public void append(String value) {
+			add(FieldDecoder.parseDouble(value, 0, value.length()));
+		}
+
+		@Override
+		public void appendMissing() {
+			add(0.0);
+		}
+
+		public void add(double value) {
+			ensureCapacity(size + 1);
+			values[size++] = value;
+		}
+
+		@Override
+		public void appendAll(ColumnBuffer other) {
+			DoubleColumn column = (DoubleColumn) other;
+			ensureCapacity(size + column.size);
+			System.arraycopy(column.values, 0, values, size, column.size);
+			size += column.size;
+		}
+
+		@Override
+		public ColumnBuffer select(int[] rowIds) {
+			double[] selected = new double[rowIds.length];
+			for (int i = 0; i < rowIds.length; i++)
+				selected[i] = values[rowIds[i]];
+			DoubleColumn column = new DoubleColumn(field);
+			column.wrap(selected, selected.length);
+			return column;
+		}
+
+		void wrap(double[] values, int size) {
+			this.values = values;
+			this.size = size;
+		}
+
+		public double get(int rowId) {
+			return values[rowId];
+		}
+
+		@Override
+		public Object getObject(int rowId) {
+			return values[rowId];
+		}
+
+		/**
+		 * Returns the backing array. Only the first {@link #size()} values are valid.
+		 */
+		public double[] array() {
+			return values;
+		}
+
+		@Override
+		public BaseVector<?, ?, ?> toVector() {
+			return DoubleVector.of(field, Arrays.copyOf(values, size));
+		}
+
+		@Override
+		public double bytesPerRow() {
+			return Double.BYTES;
+		}
+
+		@Override
+		public double boxedBytesPerRow() {
+			return BOXED_NUMBER_SIZE + REFERENCE_SIZE;
+		}
+
+		private void ensureCapacity(int rowCount) {
+			if (rowCount > values.length)
+				values = Arrays.copyOf(values, grow(values.length, rowCount));
+		}
+	}
+
+	public static class BooleanColumn extends ColumnBuffer {
+		private BitSet values = new BitSet();
+
+		BooleanColumn(StructField field) {
+			super(field);
+		}
+
+		@Override
+		public void append(String value) {
+			add(Boolean.parseBoolean(value));
+		}
+
+		public void add(boolean value) {
+			values.set(size++, value);
+		}
+
+		@Override
+		public void appendAll(ColumnBuffer other) {
+			BooleanColumn column = (BooleanColumn) other;
+			for (int i = column.values.nextSetBit(0); i >= 0 && i < column.size;
+					i = column.values.nextSetBit(i + 1))
+				values.set(size + i);
+			size += column.size;
+		}
+
+		@Override
+		public ColumnBuffer select(int[] rowIds) {
+			BitSet selected = new BitSet(rowIds.length);
+			for (int i = 0; i < rowIds.length; i++) {
+				if (values.get(rowIds[i]))
+					selected.set(i);
+			}
+			BooleanColumn column = new BooleanColumn(field);
+			column.wrap(selected, rowIds.length);
+			return column;
+		}
+
+		void wrap(BitSet values, int size) {
+			this.values = values;
+			this.size = size;
+		}
+
+		/**
+		 * Returns the backing bit set. Only the first {@link #size()} bits are valid.
+		 */
+		public BitSet bits() {
+			return values;
+		}
+
+		public boolean get(int rowId) {
+			return values.get(rowId);
+		}
+
+		@Override
+		public Object getObject(int rowId) {
+			return values.get(rowId);
+		}
+
+		@Override
+		public void truncate(int newSize) {
+			if (newSize < size) {
+				values.clear(newSize, size);
+				size = newSize;
+			}
+		}
+
+		@Override
+		public BaseVector<?, ?, ?> toVector() {
+			boolean[] array = new boolean[size];
+			for (int i = values.nextSetBit(0); i >= 0 && i < size; i = values.nextSetBit(i + 1))
+				array[i] = true;
+			return BooleanVector.of(field, array);
+		}
+
+		@Override
+		public double bytesPerRow() {
+			return 1.0 / Byte.SIZE;
+		}
+
+		@Override
+		public double boxedBytesPerRow() {
+			// Boolean objects are cached, so only the reference is counted
+			return REFERENCE_SIZE;
+		}
+	}
+
+	/**
+	 * Saves the arrays in a flattened row-major array. All the arrays in
+	 * a column must have the same length, which is decided by the first array.
+	 */
+	public static class DoubleArrayColumn extends ColumnBuffer {
+		private double[] values = new double[0];
+		private int width = -1;
+
+		DoubleArrayColumn(StructField field) {
+			super(field);
+		}
+
+		@Override
+		public void append(String value) {
+			// Decode the elements directly into the flattened array
+			if (width == -1)
+				ensureWidth(FieldDecoder.countElements(value));
+			ensureCapacity(size + 1);
+			int count = FieldDecoder.decodeDoubleArray(value, values, size * width, width);
+			ensureWidth(count);
+			size++;
+		}
+
+		@Override
+		public void appendAll(ColumnBuffer other) {
+			DoubleArrayColumn column = (DoubleArrayColumn) other;
+			if (column.size == 0)
+				return;
+			ensureWidth(column.width);
+			ensureCapacity(size + column.size);
+			System.arraycopy(column.values, 0, values, size * width, column.size * width);
+			size += column.size;
+		}
+
+		@Override
+		public ColumnBuffer select(int[] rowIds) {
+			double[] selected = new double[rowIds.length * Math.max(width, 0)];
+			for (int i = 0; i < rowIds.length; i++)
+				System.arraycopy(values, rowIds[i] * width, selected, i * width, width);
+			DoubleArrayColumn column = new DoubleArrayColumn(field);
+			column.wrap(selected, width, rowIds.length);
+			return column;
+		}
+
+		/**
+		 * Returns a double column that contains the element at the given
+		 * index of the arrays in the given rows.
+		 */
+		public DoubleColumn selectElement(StructField newField, int[] rowIds, int index) {
+			double[] selected = new double[rowIds.length];
+			for (int i = 0; i < rowIds.length; i++)
+				selected[i] = values[rowIds[i] * width + index];
+			DoubleColumn column = new DoubleColumn(newField);
+			column.wrap(selected, selected.length);
+			return column;
+		}
+
+		void wrap(double[] values, int width, int size) {
+			this.values = values;
+			this.width = width;
+			this.size = size;
+		}
+
+		public double get(int rowId, int index) {
+			return values[rowId * width + index];
+		}
+
+		@Override
+		public Object getObject(int rowId) {
+			int offset = rowId * width;
+			return Arrays.copyOfRange(values, offset, offset + width);
+		}
+
+		/**
+		 * The length of each array in this column.
+		 */
+		public int width() {
+			return width;
+		}
+
+		/**
+		 * Returns the backing array. Only the first {@link #size()} * {@link #width()}
+		 * values are valid.
+		 */
+		public double[] array() {
+			return values;
+		}
+
+		@Override
+		public BaseVector<?, ?, ?> toVector() {
+			double[][] arrays = new double[size][];
+			for (int rowId = 0; rowId < size; rowId++) {
+				int offset = rowId * width;
+				arrays[rowId] = Arrays.copyOfRange(values, offset, offset + width);
+			}
+			return Vector.of(field, arrays);
+		}
+
+		@Override
+		public double bytesPerRow() {
+			return Double.BYTES * Math.max(width, 0);
+		}
+
+		@Override
+		public double boxedBytesPerRow() {
+			return ARRAY_HEADER_SIZE + bytesPerRow() + REFERENCE_SIZE;
+		}
+
+		private void ensureWidth(int length) {
+			if (width == -1)
+				width = length;
+			else if (width != length)
+				throw new RuntimeException(String.format(
+						"Expect %d elements in '%s', but found %d elements",
+						width, field.name, length));
+		}
+
+		private void ensureCapacity(int rowCount) {
+			int required = rowCount * width;
+			if (required > values.length)
+				values = Arrays.copyOf(values, grow(values.length, required));
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package org.elasql.estimator.data;
+
+/**
+ * A filter on a single column. Loaders decode the filtered columns of a row
+ * first and skip the rest of the row if it does not match.
+ */
+public abstract class ColumnFilter {
+
+	/**
+	 * Matches the rows whose value is in (lowerBound, upperBound).
+	 */
+	public static ColumnFilter longRange(String fieldName, long lowerBound, long upperBound) {
+		return new ColumnFilter(fieldName) {
+			@Override
+			public boolean test(String value) {
+				return test(Long.parseLong(value));
+			}
+
+			@Override
+			public boolean test(ColumnBuffer column, int rowId) {
+				return test(((ColumnBuffer.LongColumn) column).get(rowId));
+			}
+
+			private boolean test(long value) {
+				return value > lowerBound && value < upperBound;
+			}
+		};
+	}
+
+	/**
+	 * Matches the rows whose value is true.
+	 */
+	public static ColumnFilter isTrue(String fieldName) {
+		return new ColumnFilter(fieldName) {
+			@Override
+			public boolean test(String value) {
+				return Boolean.parseBoolean(value);
+			}
+
+			@Override
+			public boolean test(ColumnBuffer column, int rowId) {
+				return ((ColumnBuffer.BooleanColumn) column).get(rowId);
+			}
+		};
+	}
+
+	private String fieldName;
+
+	private ColumnFilter(String fieldName) {
+		this.fieldName = fieldName;
+	}
+
+	public String fieldName() {
+		return fieldName;
+	}
+
+	/**
+	 * Tests the trimmed text of a cell.
+	 */
+	public abstract boolean test(String value);
+
+	/**
+	 * Tests a value that is saved in a column.
+	 */
+	public abstract boolean test(ColumnBuffer column, int rowId);
+}
@@ -0,0 +1,395 @@
+package org.elasql.estimator.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import smile.data.DataFrame;
+import smile.data.type.DataType;
+import smile.data.type.DataTypes;
+import smile.data.type.StructField;
+import smile.data.type.StructType;
+
+/**
+ * Reads and writes a {@link ColumnarTable} in a binary columnar format.
+ *
+ * The file starts with a fixed header (magic number, format version, row count,
+ * column count and the length of the schema block), followed by the schema block
+ * (name, type and array width of each column) and then the values of each column
+ * saved contiguously. Reading a file memory-maps each column and copies it into
+ * a primitive array in bulk, which is much faster than parsing a CSV file.
+ *
+ * A file is written to a temporary file first and then moved into place, so an
+ * interrupted write leaves the previous file intact.
+ */
+public class ColumnarFile {
+	private static Logger logger = Logger.getLogger(ColumnarFile.class.getName());
+
+	public static final String FILE_EXTENSION = ".bin";
+
+	private static final int MAGIC_NUMBER = 0x45434F4C; // "ECOL"
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = 5 * Integer.BYTES;
+	private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+	// A mapped buffer cannot exceed 2 GB, so a larger column is mapped in pieces
+	private static final int MAX_MAP_SIZE = 1 << 30;
+
+	// Type codes in the schema block
+	private static final byte TYPE_LONG = 0;
+	private static final byte TYPE_DOUBLE = 1;
+	private static final byte TYPE_BOOLEAN = 2;
+	private static final byte TYPE_DOUBLE_ARRAY = 3;
+
+	public static boolean isColumnarFile(File file) {
+		if (!file.isFile() || file.length() < HEADER_SIZE)
+			return false;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
+			channel.read(buffer, 0);
+			buffer.flip();
+			return buffer.getInt() == MAGIC_NUMBER;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	public static DataFrame load(File file, List<ColumnFilter> filters) {
+		return loadTable(file, filters).toDataFrame();
+	}
+
+	public static ColumnarTable loadTable(File file, List<ColumnFilter> filters) {
+		ColumnarTable table = read(file);
+		if (!filters.isEmpty())
+			table = filter(table, filters);
+
+		if (logger.isLoggable(Level.INFO))
+			logger.info(String.format("Loaded %d rows from '%s'", table.size(), file));
+
+		return table;
+	}
+
+	private static ColumnarTable filter(ColumnarTable table, List<ColumnFilter> filters) {
+		// Pick the rows that match the filters
+		ColumnBuffer[] filterColumns = new ColumnBuffer[filters.size()];
+		for (int i = 0; i < filterColumns.length; i++)
+			filterColumns[i] = table.column(filters.get(i).fieldName());
+		int[] rowIds = new int[table.size()];
+		int count = 0;
+		for (int rowId = 0; rowId < table.size(); rowId++) {
+			if (matches(filters, filterColumns, rowId))
+				rowIds[count++] = rowId;
+		}
+		if (count == table.size())
+			return table;
+		return table.select(Arrays.copyOf(rowIds, count));
+	}
+
+	private static boolean matches(List<ColumnFilter> filters, ColumnBuffer[] filterColumns,
+			int rowId) {
+		for (int i = 0; i < filterColumns.length; i++) {
+			if (!filters.get(i).test(filterColumns[i], rowId))
+				return false;
+		}
+		return true;
+	}
+
+	public static ColumnarTable read(File file) {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			// Header
+			ByteBuffer header = channel.map(MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if (header.getInt() != MAGIC_NUMBER)
+				throw new RuntimeException("'" + file + "' is not a columnar data file");
+			int version = header.getInt();
+			if (version != FORMAT_VERSION)
+				throw new RuntimeException(String.format(
+						"Unsupported format version %d of '%s' (expect %d)",
+						version, file, FORMAT_VERSION));
+			int rowCount = header.getInt();
+			int columnCount = header.getInt();
+			int schemaSize = header.getInt();
+
+			// Schema
+			ByteBuffer schemaBlock = channel.map(MapMode.READ_ONLY, HEADER_SIZE, schemaSize);
+			StructField[] fields = new StructField[columnCount];
+			byte[] typeCodes = new byte[columnCount];
+			int[] widths = new int[columnCount];
+			for (int i = 0; i < columnCount; i++) {
+				byte[] nameBytes = new byte[schemaBlock.getShort()];
+				schemaBlock.get(nameBytes);
+				typeCodes[i] = schemaBlock.get();
+				widths[i] = schemaBlock.getInt();
+				fields[i] = new StructField(new String(nameBytes, StandardCharsets.UTF_8),
+						toDataType(typeCodes[i]));
+			}
+			StructType schema = DataTypes.struct(fields);
+
+			// Values
+			long position = HEADER_SIZE + schemaSize;
+			ColumnBuffer[] columns = new ColumnBuffer[columnCount];
+			for (int i = 0; i < columnCount; i++) {
+				columns[i] = readColumn(channel, position, fields[i], typeCodes[i], rowCount,
+						widths[i]);
+				position += columnSize(typeCodes[i], rowCount, widths[i]);
+			}
+
+			return new ColumnarTable(schema, columns);
+		} catch (IOException e) {
+			throw new RuntimeException("Error while reading a columnar data file from '"
+					+ file + "'", e);
+		}
+	}
+
+	public static void write(ColumnarTable table, File file) {
+		StructType schema = table.schema();
+		int rowCount = table.size();
+		Path tempFile = file.toPath().resolveSibling(file.getName() + ".tmp");
+
+		try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			// Schema
+			ByteBuffer schemaBlock = ByteBuffer.allocate(schemaSize(schema));
+			for (int i = 0; i < schema.length(); i++) {
+				ColumnBuffer column = table.column(i);
+				byte[] nameBytes = schema.field(i).name.getBytes(StandardCharsets.UTF_8);
+				schemaBlock.putShort((short) nameBytes.length);
+				schemaBlock.put(nameBytes);
+				schemaBlock.put(toTypeCode(schema.field(i).type));
+				schemaBlock.putInt(widthOf(column));
+			}
+			schemaBlock.flip();
+
+			// Header
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC_NUMBER);
+			header.putInt(FORMAT_VERSION);
+			header.putInt(rowCount);
+			header.putInt(schema.length());
+			header.putInt(schemaBlock.remaining());
+			header.flip();
+
+			writeFully(channel, header);
+			writeFully(channel, schemaBlock);
+
+			// Values
+			ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+			for (int i = 0; i < schema.length(); i++)
+				writeColumn(channel, buffer, table.column(i));
+			channel.force(true);
+		} catch (IOException e) {
+			deleteQuietly(tempFile);
+			throw new RuntimeException("Error while writing a columnar data file to '"
+					+ file + "'", e);
+		}
+
+		try {
+			Files.move(tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			deleteQuietly(tempFile);
+			throw new RuntimeException("Error while moving a columnar data file to '"
+					+ file + "'", e);
+		}
+	}
+
+	private static void deleteQuietly(Path path) {
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning("Cannot delete '" + path + "': " + e);
+		}
+	}
+
+	private static ColumnBuffer readColumn(FileChannel channel, long position,
+			StructField field, byte typeCode, int rowCount, int width) throws IOException {
+		switch (typeCode) {
+		case TYPE_LONG: {
+			long[] values = new long[rowCount];
+			readLongs(channel, position, values);
+			ColumnBuffer.LongColumn column = new ColumnBuffer.LongColumn(field);
+			column.wrap(values, rowCount);
+			return column;
+		}
+		case TYPE_DOUBLE: {
+			double[] values = new double[rowCount];
+			readDoubles(channel, position, values);
+			ColumnBuffer.DoubleColumn column = new ColumnBuffer.DoubleColumn(field);
+			column.wrap(values, rowCount);
+			return column;
+		}
+		case TYPE_BOOLEAN: {
+			long[] words = new long[wordCount(rowCount)];
+			readLongs(channel, position, words);
+			ColumnBuffer.BooleanColumn column = new ColumnBuffer.BooleanColumn(field);
+			column.wrap(BitSet.valueOf(words), rowCount);
+			return column;
+		}
+		case TYPE_DOUBLE_ARRAY: {
+			double[] values = new double[valueCount(field, rowCount, width)];
+			readDoubles(channel, position, values);
+			ColumnBuffer.DoubleArrayColumn column = new ColumnBuffer.DoubleArrayColumn(field);
+			column.wrap(values, width, rowCount);
+			return column;
+		}
+		default:
+			throw new RuntimeException("Unknown type code " + typeCode);
+		}
+	}
+
+	private static void readLongs(FileChannel channel, long position, long[] values)
+			throws IOException {
+		int capacity = MAX_MAP_SIZE / Long.BYTES;
+		for (long offset = 0; offset < values.length; offset += capacity) {
+			int length = (int) Math.min(capacity, values.length - offset);
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY,
+					position + offset * Long.BYTES, (long) length * Long.BYTES);
+			buffer.asLongBuffer().get(values, (int) offset, length);
+		}
+	}
+
+	private static void readDoubles(FileChannel channel, long position, double[] values)
+			throws IOException {
+		int capacity = MAX_MAP_SIZE / Double.BYTES;
+		for (long offset = 0; offset < values.length; offset += capacity) {
+			int length = (int) Math.min(capacity, values.length - offset);
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY,
+					position + offset * Double.BYTES, (long) length * Double.BYTES);
+			buffer.asDoubleBuffer().get(values, (int) offset, length);
+		}
+	}
+
+	// The values of an array column must fit in a single Java array
+	private static int valueCount(StructField field, int rowCount, int width) {
+		try {
+			return Math.multiplyExact(rowCount, width);
+		} catch (ArithmeticException e) {
+			throw new RuntimeException(String.format(
+					"The column '%s' has too many values (%d rows of %d) for an array",
+					field.name, rowCount, width), e);
+		}
+	}
+
+	private static void writeColumn(FileChannel channel, ByteBuffer buffer,
+			ColumnBuffer column) throws IOException {
+		int rowCount = column.size();
+		if (column instanceof ColumnBuffer.LongColumn) {
+			long[] values = ((ColumnBuffer.LongColumn) column).array();
+			int capacity = buffer.capacity() / Long.BYTES;
+			for (int offset = 0; offset < rowCount; offset += capacity) {
+				int length = Math.min(capacity, rowCount - offset);
+				buffer.clear();
+				buffer.asLongBuffer().put(values, offset, length);
+				buffer.limit(length * Long.BYTES);
+				writeFully(channel, buffer);
+			}
+		} else if (column instanceof ColumnBuffer.DoubleColumn) {
+			writeDoubles(channel, buffer, ((ColumnBuffer.DoubleColumn) column).array(),
+					rowCount);
+		} else if (column instanceof ColumnBuffer.BooleanColumn) {
+			long[] words = ((ColumnBuffer.BooleanColumn) column).bits()
+					.get(0, rowCount).toLongArray();
+			ByteBuffer wordBuffer = ByteBuffer.allocate(wordCount(rowCount) * Long.BYTES);
+			wordBuffer.asLongBuffer().put(words);
+			writeFully(channel, wordBuffer);
+		} else if (column instanceof ColumnBuffer.DoubleArrayColumn) {
+			ColumnBuffer.DoubleArrayColumn arrayColumn = (ColumnBuffer.DoubleArrayColumn) column;
+			writeDoubles(channel, buffer, arrayColumn.array(),
+					valueCount(arrayColumn.field(), rowCount, widthOf(arrayColumn)));
+		} else {
+			throw new IllegalArgumentException("Unsupported column " + column.field());
+		}
+	}
+
+	private static void writeDoubles(FileChannel channel, ByteBuffer buffer,
+			double[] values, int count) throws IOException {
+		int capacity = buffer.capacity() / Double.BYTES;
+		for (int offset = 0; offset < count; offset += capacity) {
+			int length = Math.min(capacity, count - offset);
+			buffer.clear();
+			buffer.asDoubleBuffer().put(values, offset, length);
+			buffer.limit(length * Double.BYTES);
+			writeFully(channel, buffer);
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	private static int schemaSize(StructType schema) {
+		int size = 0;
+		for (StructField field : schema.fields()) {
+			size += Short.BYTES + field.name.getBytes(StandardCharsets.UTF_8).length;
+			size += 1 + Integer.BYTES;
+		}
+		return size;
+	}
+
+	private static long columnSize(byte typeCode, int rowCount, int width) {
+		switch (typeCode) {
+		case TYPE_LONG:
+			return (long) rowCount * Long.BYTES;
+		case TYPE_DOUBLE:
+			return (long) rowCount * Double.BYTES;
+		case TYPE_BOOLEAN:
+			return (long) wordCount(rowCount) * Long.BYTES;
+		case TYPE_DOUBLE_ARRAY:
+			return (long) rowCount * width * Double.BYTES;
+		default:
+			throw new RuntimeException("Unknown type code " + typeCode);
+		}
+	}
+
+	private static int wordCount(int bitCount) {
+		return (bitCount + Long.SIZE - 1) / Long.SIZE;
+	}
+
+	private static int widthOf(ColumnBuffer column) {
+		if (column instanceof ColumnBuffer.DoubleArrayColumn)
+			return Math.max(((ColumnBuffer.DoubleArrayColumn) column).width(), 0);
+		return 0;
+	}
+
+	private static byte toTypeCode(DataType type) {
+		if (type == DataTypes.LongType)
+			return TYPE_LONG;
+		else if (type == DataTypes.DoubleType)
+			return TYPE_DOUBLE;
+		else if (type == DataTypes.BooleanType)
+			return TYPE_BOOLEAN;
+		else if (type == DataTypes.DoubleArrayType)
+			return TYPE_DOUBLE_ARRAY;
+		else
+			throw new IllegalArgumentException("Unsupported type " + type);
+	}
+
+	private static DataType toDataType(byte typeCode) {
+		switch (typeCode) {
+		case TYPE_LONG:
+			return DataTypes.LongType;
+		case TYPE_DOUBLE:
+			return DataTypes.DoubleType;
+		case TYPE_BOOLEAN:
+			return DataTypes.BooleanType;
+		case TYPE_DOUBLE_ARRAY:
+			return DataTypes.DoubleArrayType;
+		default:
+			throw new RuntimeException("Unknown type code " + typeCode);
+		}
+	}
+}
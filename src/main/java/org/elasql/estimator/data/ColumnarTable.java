@@ -0,0 +1,106 @@
+package org.elasql.estimator.data;
+
+import java.util.List;
+
+import smile.data.DataFrame;
+import smile.data.type.StructType;
+import smile.data.vector.BaseVector;
+
+/**
+ * A table whose columns are saved in primitive column buffers.
+ */
+public class ColumnarTable {
+
+	/**
+	 * Concatenates the tables with the same schema in the given order.
+	 */
+	public static ColumnarTable concat(StructType schema, List<ColumnarTable> tables) {
+		ColumnarTable result = new ColumnarTable(schema);
+		for (ColumnarTable table : tables) {
+			for (int i = 0; i < result.columns.length; i++)
+				result.columns[i].appendAll(table.columns[i]);
+		}
+		return result;
+	}
+
+	private StructType schema;
+	private ColumnBuffer[] columns;
+
+	public ColumnarTable(StructType schema) {
+		this.schema = schema;
+		this.columns = new ColumnBuffer[schema.length()];
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = ColumnBuffer.newBuffer(schema.field(i));
+		}
+	}
+
+	ColumnarTable(StructType schema, ColumnBuffer[] columns) {
+		this.schema = schema;
+		this.columns = columns;
+	}
+
+	public StructType schema() {
+		return schema;
+	}
+
+	public int size() {
+		return columns.length == 0? 0 : columns[0].size();
+	}
+
+	public int columnIndex(String fieldName) {
+		return schema.fieldIndex(fieldName);
+	}
+
+	public ColumnBuffer column(int columnId) {
+		return columns[columnId];
+	}
+
+	public ColumnBuffer column(String fieldName) {
+		return columns[columnIndex(fieldName)];
+	}
+
+	/**
+	 * Drops the rows after the given number of rows.
+	 */
+	public void truncate(int newSize) {
+		for (ColumnBuffer column : columns)
+			column.truncate(newSize);
+	}
+
+	/**
+	 * Returns a new table that contains the given rows in the given order.
+	 */
+	public ColumnarTable select(int[] rowIds) {
+		ColumnBuffer[] selected = new ColumnBuffer[columns.length];
+		for (int i = 0; i < columns.length; i++)
+			selected[i] = columns[i].select(rowIds);
+		return new ColumnarTable(schema, selected);
+	}
+
+	public DataFrame toDataFrame() {
+		BaseVector<?, ?, ?>[] vectors = new BaseVector<?, ?, ?>[columns.length];
+		for (int i = 0; i < columns.length; i++) {
+			vectors[i] = columns[i].toVector();
+		}
+		return DataFrame.of(vectors);
+	}
+
+	public double bytesPerRow() {
+		double bytes = 0.0;
+		for (ColumnBuffer column : columns)
+			bytes += column.bytesPerRow();
+		return bytes;
+	}
+
+	/**
+	 * The estimated number of bytes that a row takes if it is saved
+	 * as a tuple with boxed values.
+	 */
+	public double boxedBytesPerRow() {
+		// The tuple object, its value array and the reference in the row list
+		double bytes = 16 + 16 + 4;
+		for (ColumnBuffer column : columns)
+			bytes += column.boxedBytesPerRow();
+		return bytes;
+	}
+}
@@ -0,0 +1,172 @@
+package org.elasql.estimator.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.elasql.estimator.Constants;
+
+import smile.data.DataFrame;
+import smile.data.type.DataTypes;
+import smile.data.type.StructField;
+import smile.data.type.StructType;
+import smile.data.vector.BaseVector;
+import smile.data.vector.BooleanVector;
+import smile.data.vector.DoubleVector;
+
+/**
+ * A data set that logically concatenates the data sets of multiple servers.
+ * The rows of the i-th part start at the i-th row offset, so nothing is
+ * copied until a training data frame of a label is requested.
+ *
+ * The features and the labels of the super class are not set, so every
+ * method reading them is overridden to read the parts instead.
+ */
+public class CompositeOuDataSet extends OuDataSet {
+
+	private List<OuDataSet> parts;
+	private int[] rowOffsets;
+
+	CompositeOuDataSet(List<OuDataSet> parts, double outlinerStdThreshold) {
+		super(outlinerStdThreshold);
+
+		this.parts = new ArrayList<OuDataSet>();
+		for (OuDataSet part : parts)
+			this.parts.addAll(part.getParts());
+
+		rowOffsets = new int[this.parts.size() + 1];
+		for (int i = 0; i < this.parts.size(); i++)
+			rowOffsets[i + 1] = rowOffsets[i] + this.parts.get(i).size();
+	}
+
+	@Override
+	public List<OuDataSet> getParts() {
+		return Collections.unmodifiableList(parts);
+	}
+
+	@Override
+	public OuDataSet union(OuDataSet dataSet) {
+		return concat(Arrays.asList(this, dataSet));
+	}
+
+	/**
+	 * Splits each part by the ratio and concatenates the training sets and
+	 * the testing sets of the parts, so each server keeps the same ratio.
+	 */
+	@Override
+	public OuDataSet[] trainTestSplit(double trainingDataRatio) {
+		List<OuDataSet> trainSets = new ArrayList<OuDataSet>(parts.size());
+		List<OuDataSet> testSets = new ArrayList<OuDataSet>(parts.size());
+		for (OuDataSet part : parts) {
+			OuDataSet[] split = part.trainTestSplit(trainingDataRatio);
+			trainSets.add(split[0]);
+			testSets.add(split[1]);
+		}
+		return new OuDataSet[] {concat(trainSets), concat(testSets)};
+	}
+
+	/**
+	 * Gathers the inlier rows of all the parts into a new data frame, which
+	 * is the only copy of the features made for training.
+	 */
+	@Override
+	public DataFrame toTrainingDataFrame(String labelField) {
+		// Find the inliers
+		double[] labelValues = getLabels(labelField);
+		boolean[] inliers = findInliers(labelField, labelValues);
+		int inlierCount = 0;
+		for (boolean inlier : inliers) {
+			if (inlier)
+				inlierCount++;
+		}
+
+		// Remove the id field and start time field
+		StructType schema = parts.get(0).getFeatures().drop(Constants.FIELD_NAME_ID,
+				Constants.FIELD_NAME_START_TIME).schema();
+
+		BaseVector<?, ?, ?>[] vectors = new BaseVector<?, ?, ?>[schema.length() + 1];
+		for (int i = 0; i < schema.length(); i++)
+			vectors[i] = gatherColumn(schema.field(i), inliers, inlierCount);
+
+		// Append the label column
+		double[] inlierLabels = new double[inlierCount];
+		int count = 0;
+		for (int rowId = 0; rowId < labelValues.length; rowId++) {
+			if (inliers[rowId])
+				inlierLabels[count++] = labelValues[rowId];
+		}
+		vectors[schema.length()] = DoubleVector.of(
+				parts.get(0).getLabels().schema().field(labelField), inlierLabels);
+
+		return DataFrame.of(vectors);
+	}
+
+	@Override
+	public int size() {
+		return rowOffsets[parts.size()];
+	}
+
+	/**
+	 * Note that this copies the features of all the parts into one data frame.
+	 * Use {@link #getParts()} to read the parts without copying.
+	 */
+	@Override
+	public DataFrame getFeatures() {
+		DataFrame[] others = new DataFrame[parts.size() - 1];
+		for (int i = 1; i < parts.size(); i++)
+			others[i - 1] = parts.get(i).getFeatures();
+		return parts.get(0).getFeatures().union(others);
+	}
+
+	/**
+	 * Note that this copies the labels of all the parts into one data frame.
+	 */
+	@Override
+	public DataFrame getLabels() {
+		DataFrame[] others = new DataFrame[parts.size() - 1];
+		for (int i = 1; i < parts.size(); i++)
+			others[i - 1] = parts.get(i).getLabels();
+		return parts.get(0).getLabels().union(others);
+	}
+
+	@Override
+	public double[] getLabels(String labelField) {
+		double[] labels = new double[size()];
+		for (int i = 0; i < parts.size(); i++) {
+			double[] partLabels = parts.get(i).getLabels(labelField);
+			System.arraycopy(partLabels, 0, labels, rowOffsets[i], partLabels.length);
+		}
+		return labels;
+	}
+
+	private BaseVector<?, ?, ?> gatherColumn(StructField field, boolean[] inliers,
+			int inlierCount) {
+		if (field.type == DataTypes.DoubleType) {
+			double[] values = new double[inlierCount];
+			int count = 0;
+			for (int i = 0; i < parts.size(); i++) {
+				DataFrame features = parts.get(i).getFeatures();
+				int columnId = features.columnIndex(field.name);
+				for (int rowId = 0; rowId < features.size(); rowId++) {
+					if (inliers[rowOffsets[i] + rowId])
+						values[count++] = features.getDouble(rowId, columnId);
+				}
+			}
+			return DoubleVector.of(field, values);
+		} else if (field.type == DataTypes.BooleanType) {
+			boolean[] values = new boolean[inlierCount];
+			int count = 0;
+			for (int i = 0; i < parts.size(); i++) {
+				DataFrame features = parts.get(i).getFeatures();
+				int columnId = features.columnIndex(field.name);
+				for (int rowId = 0; rowId < features.size(); rowId++) {
+					if (inliers[rowOffsets[i] + rowId])
+						values[count++] = features.getBoolean(rowId, columnId);
+				}
+			}
+			return BooleanVector.of(field, values);
+		}
+		throw new RuntimeException("Unsupported feature type: " + field);
+	}
+}
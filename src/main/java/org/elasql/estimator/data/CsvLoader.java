@@ -1,12 +1,24 @@
 package org.elasql.estimator.data;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.function.Function;
-import java.util.function.Predicate;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
@@ -14,42 +26,291 @@ import org.apache.commons.csv.CSVRecord;
 import org.elasql.estimator.Constants;
 
 import smile.data.DataFrame;
-import smile.data.Tuple;
 import smile.data.type.DataType;
 import smile.data.type.DataTypes;
 import smile.data.type.StructField;
 import smile.data.type.StructType;
 
 public class CsvLoader {
+	private static Logger logger = Logger.getLogger(CsvLoader.class.getName());
 	
-	public static DataFrame load(Path path, Predicate<Tuple> filter) {
+	// Each thread parses a few chunks so that a slow chunk does not stall the others
+	private static final int CHUNKS_PER_THREAD = 4;
+	private static final long MIN_CHUNK_SIZE = 1L << 20; // 1 MB
+	private static final long MAX_CHUNK_SIZE = 1L << 30; // 1 GB
+	
+	public static DataFrame load(Path path, List<ColumnFilter> filters) {
+		return load(path, filters, 1);
+	}
+	
+	/**
+	 * Loads a CSV file. If more than one thread is given, the file is memory-mapped and
+	 * split into chunks at line boundaries, and the chunks are parsed in parallel.
+	 * This assumes that no value in the file contains a line break.
+	 */
+	public static DataFrame load(Path path, List<ColumnFilter> filters, int threadCount) {
+		// Wrap the data to a data frame
+		return loadTable(path, filters, threadCount).toDataFrame();
+	}
+	
+	public static ColumnarTable loadTable(Path path, List<ColumnFilter> filters, int threadCount) {
+		if (threadCount <= 1)
+			return loadTable(path, filters, null);
+		
+		ForkJoinPool pool = new ForkJoinPool(threadCount);
 		try {
-			StructType schema = inferSchema(path);
-	        List<Function<String, Object>> valParsers = schema.parser();
-	        
-	        // Parse CSV row by row
-	        try (CSVParser csv = newCsvParser(path)) {
-	            List<Tuple> rows = new ArrayList<>();
-	            
-	            for (CSVRecord record : csv) {
-	            	// Skip headers (there may be many)
-	            	if (isHeader(record))
-	            		continue;
-	            	
-	            	// Parse data
-	            	Tuple tuple = parseCsvRecord(record, schema, valParsers);
-	            	
-	            	// Add only the row that matches the predicate
-	            	if (filter.test(tuple))
-	            		rows.add(tuple);
-	            }
-	            
-	            // Wrap the data to a data frame
-	            return DataFrame.of(rows, schema);
-	        }
-        } catch (IOException e) {
-        	throw new RuntimeException("Error while reading a CSV file from '" + path + "'", e);
-        }
+			return loadTable(path, filters, pool);
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	 * Loads a CSV file by parsing its chunks on the given pool, which may be
+	 * shared with other loading tasks so that they do not take more threads
+	 * than the pool has. The file is parsed sequentially if the pool is null
+	 * or only has one thread.
+	 */
+	public static ColumnarTable loadTable(Path path, List<ColumnFilter> filters,
+			ForkJoinPool pool) {
+		try {
+			ColumnarTable table = null;
+			if (pool != null && pool.getParallelism() > 1)
+				table = loadInParallel(path, filters, pool);
+			if (table == null)
+				table = loadSequentially(path, filters);
+			
+			if (logger.isLoggable(Level.INFO))
+				logger.info(String.format("Loaded %d rows from '%s' (%.1f bytes/row in columns"
+						+ ", while boxed tuples take about %.1f bytes/row)", table.size(),
+						path, table.bytesPerRow(), table.boxedBytesPerRow()));
+			
+			return table;
+		} catch (IOException | UncheckedIOException e) {
+			throw new RuntimeException("Error while reading a CSV file from '" + path + "'", e);
+		}
+	}
+	
+	private static ColumnarTable loadSequentially(Path path, List<ColumnFilter> filters)
+			throws IOException {
+		// Parse CSV row by row. The schema is inferred from the first header
+		// and the first data row, so the file only needs to be read once.
+		try (CSVParser csv = newCsvParser(path)) {
+			RecordParser parser = null;
+			CSVRecord pendingHeader = null;
+			CSVRecord firstRowBeforeHeader = null;
+			
+			for (CSVRecord record : csv) {
+				// There may be many headers. Only a header that changes
+				// the layout needs a new schema.
+				if (isHeader(record)) {
+					if (parser == null || !hasSameLayout(record, parser.table().schema()))
+						pendingHeader = record;
+					continue;
+				}
+				
+				// The rows before the first header are parsed once a header
+				// gives the schema
+				if (parser == null && pendingHeader == null) {
+					if (firstRowBeforeHeader == null)
+						firstRowBeforeHeader = record;
+					continue;
+				}
+				
+				// Infer the schema with the header and the first row after it
+				if (pendingHeader != null) {
+					StructType newSchema = inferSchema(pendingHeader, record);
+					
+					// Since the last header determines the schema of the whole file,
+					// we have to re-parse the rows before it with the new schema.
+					if (parser == null && firstRowBeforeHeader == null) {
+						parser = new RecordParser(newSchema, filters);
+					} else if (parser == null) {
+						parser = parseRecordsBefore(path, record.getRecordNumber(),
+								newSchema, filters);
+					} else if (!newSchema.equals(parser.table().schema())) {
+						parser = parseRecordsBefore(path, record.getRecordNumber(),
+								newSchema, filters);
+					}
+					
+					pendingHeader = null;
+				}
+				
+				// Parse data and keep only the row that matches the filters
+				parser.parse(record);
+			}
+			
+			// The header may come after all the rows
+			if (parser == null && pendingHeader != null && firstRowBeforeHeader != null)
+				parser = parseRecordsBefore(path, Long.MAX_VALUE,
+						inferSchema(pendingHeader, firstRowBeforeHeader), filters);
+			
+			if (parser == null && firstRowBeforeHeader != null)
+				throw new RuntimeException("No '" + Constants.FIELD_NAME_ID
+						+ "' header found for the data in the CSV file '" + path + "'");
+			if (parser == null)
+				throw new RuntimeException("No data found in the CSV file '" + path + "'");
+			
+			return parser.table();
+		}
+	}
+	
+	/**
+	 * Returns null if the file cannot be loaded in parallel, e.g., a later
+	 * header changes the layout of the file.
+	 */
+	private static ColumnarTable loadInParallel(Path path, List<ColumnFilter> filters,
+			ForkJoinPool pool) throws IOException {
+		StructType schema = inferSchemaFromFirstRows(path);
+		if (schema == null)
+			return null;
+		
+		List<long[]> chunks = splitIntoChunks(path, pool.getParallelism() * CHUNKS_PER_THREAD);
+		
+		// A parallel stream runs on the pool that submits it
+		try {
+			List<ColumnarTable> tables = pool.submit(() -> chunks.parallelStream()
+					.map(chunk -> parseChunk(path, chunk[0], chunk[1], schema, filters))
+					.collect(Collectors.toList())
+			).get();
+			
+			// Stitch the chunks in the order of rows
+			return ColumnarTable.concat(schema, tables);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof LayoutChangedException) {
+				if (logger.isLoggable(Level.INFO))
+					logger.info("The layout of '" + path + "' changes in the middle."
+							+ " Fall back to sequential loading.");
+				return null;
+			}
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Splits the file into chunks that each starts at the beginning of a line.
+	 * 
+	 * @return the pairs of [start position, end position)
+	 */
+	private static List<long[]> splitIntoChunks(Path path, int chunkCount) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long fileSize = channel.size();
+			long chunkSize = fileSize / chunkCount;
+			chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, chunkSize));
+			
+			List<long[]> chunks = new ArrayList<long[]>();
+			long start = 0;
+			while (start < fileSize) {
+				long end = nextLineStart(channel, Math.min(start + chunkSize, fileSize));
+				chunks.add(new long[] {start, end});
+				start = end;
+			}
+			return chunks;
+		}
+	}
+	
+	private static long nextLineStart(FileChannel channel, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		long fileSize = channel.size();
+		while (position < fileSize) {
+			buffer.clear();
+			int readCount = channel.read(buffer, position);
+			for (int i = 0; i < readCount; i++) {
+				if (buffer.get(i) == '\n')
+					return position + i + 1;
+			}
+			position += readCount;
+		}
+		return fileSize;
+	}
+	
+	private static ColumnarTable parseChunk(Path path, long start, long end,
+			StructType schema, List<ColumnFilter> filters) {
+		RecordParser parser = new RecordParser(schema, filters);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, start, end - start);
+			Reader reader = new InputStreamReader(new ByteBufferInputStream(buffer),
+					StandardCharsets.UTF_8);
+			try (CSVParser csv = CSVParser.parse(reader, CSVFormat.DEFAULT)) {
+				for (CSVRecord record : csv) {
+					// A chunk may start with a repeated header
+					if (isHeader(record)) {
+						if (!hasSameLayout(record, schema))
+							throw new LayoutChangedException();
+						continue;
+					}
+					
+					parser.parse(record);
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return parser.table();
+	}
+	
+	private static StructType inferSchemaFromFirstRows(Path path) throws IOException {
+		try (CSVParser csv = newCsvParser(path)) {
+			CSVRecord header = null;
+			for (CSVRecord record : csv) {
+				if (isHeader(record))
+					header = record;
+				else if (header != null)
+					return inferSchema(header, record);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Parses the data rows whose record numbers are less than the given one.
+	 * This is only used when a later header changes the layout of the file.
+	 */
+	private static RecordParser parseRecordsBefore(Path path, long endRecordNumber,
+			StructType schema, List<ColumnFilter> filters) throws IOException {
+		RecordParser parser = new RecordParser(schema, filters);
+		try (CSVParser csv = newCsvParser(path)) {
+			for (CSVRecord record : csv) {
+				if (record.getRecordNumber() >= endRecordNumber)
+					break;
+				if (isHeader(record))
+					continue;
+				
+				parser.parse(record);
+			}
+		}
+		return parser;
+	}
+	
+	private static class LayoutChangedException extends RuntimeException {
+		private static final long serialVersionUID = 20220601001L;
+	}
+	
+	private static class ByteBufferInputStream extends InputStream {
+		private ByteBuffer buffer;
+		
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+		
+		@Override
+		public int read() {
+			return buffer.hasRemaining()? buffer.get() & 0xFF : -1;
+		}
+		
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			if (!buffer.hasRemaining())
+				return -1;
+			length = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, length);
+			return length;
+		}
 	}
 	
 	private static CSVParser newCsvParser(Path path) throws IOException {
@@ -60,36 +321,22 @@ public class CsvLoader {
 		return record.get(0).trim().equals(Constants.FIELD_NAME_ID);
 	}
 	
-	private static double[] parseDoubleArray(String s) {
-		// strip surrounding []
-        String[] elements = s.substring(1, s.length() - 1).split(",");
-        double[] array = new double[elements.length];
-        for (int ei = 0; ei < elements.length; ei++) {
-            array[ei] = Double.parseDouble(elements[ei]);
-        }
-        return array;
+	private static boolean hasSameLayout(CSVRecord header, StructType schema) {
+		if (header.size() != schema.length())
+			return false;
+		for (int i = 0; i < header.size(); i++) {
+			if (!header.get(i).trim().equals(schema.field(i).name))
+				return false;
+		}
+		return true;
 	}
 	
-	private static StructType inferSchema(Path path) throws IOException {
-		// Find the last CSV records that might be a header and values
-		CSVRecord lastHeader = null;
-		CSVRecord lastValues = null;
-		try (CSVParser csv = newCsvParser(path)) {
-            for (CSVRecord record : csv) {
-        		// Since there might be multiple header lines in the file, we treat
-        		// the last line starting with 'Transaction ID' as the header
-            	if (isHeader(record))
-            		lastHeader = record;
-            	else
-            		lastValues = record;
-            }
-        }
-		
+	private static StructType inferSchema(CSVRecord header, CSVRecord values) {
 		// Infer the schema
-		String[] names = new String[lastValues.size()];
-        DataType[] types = new DataType[lastValues.size()];
+		String[] names = new String[values.size()];
+        DataType[] types = new DataType[values.size()];
         for (int i = 0; i < names.length; i++) {
-        	String fieldName = lastHeader.get(i).trim();
+        	String fieldName = header.get(i).trim();
             names[i] = fieldName;
 
     		// 'Transaction ID' and 'Start Time' are always LongType
@@ -103,7 +350,7 @@ public class CsvLoader {
             		fieldName.equals(Constants.FIELD_NAME_IS_DIST))
             	types[i] = DataTypes.BooleanType;
             else {
-            	String value = lastValues.get(i).trim();
+            	String value = values.get(i).trim();
             	if (value.startsWith("["))
             		types[i] = DataTypes.DoubleArrayType;
             	else
@@ -119,37 +366,54 @@ public class CsvLoader {
         return DataTypes.struct(fields);
 	}
 	
-	private static Tuple parseCsvRecord(CSVRecord record, StructType schema,
-			List<Function<String, Object>> valParsers) {
-		StructField[] fields = schema.fields();
-		Object[] row = new Object[fields.length];
-        for (int i = 0; i < fields.length; i++) {
-        	String valStr = null;
-        	
-        	// Get the value
-        	if (i < record.size()) {
-        		valStr = record.get(i).trim();
-        	}
-            
-        	// Fill the field if it does not exists
-            if (valStr == null || valStr.isEmpty()) {
-            	// We assume the missing values are all double values
-            	if (fields[i].type.isDouble())
-            		row[i] = 0.0;
-            	else
-            		throw new RuntimeException("Don't know how to fill values for '" +
-            				fields[i].name + "'");
-            } else {
-            	if (fields[i].type == DataTypes.DoubleArrayType) {
-            		// The library does implement a parser for double arrays.
-            		// However, it saves all the values into an Object array,
-            		// which leads to a bug causing toString() does not work properly.
-                    row[i] = parseDoubleArray(valStr);
-            	} else {
-            		row[i] = valParsers.get(i).apply(valStr);
-            	}
-            }
-        }
-        return Tuple.of(row, schema);
+	/**
+	 * Parses records into a table. The columns that the filters need are
+	 * decoded first, and the rest of a record is skipped if it does not match.
+	 */
+	private static class RecordParser {
+		private ColumnarTable table;
+		private List<ColumnFilter> filters;
+		private int[] filterColumns;
+		
+		RecordParser(StructType schema, List<ColumnFilter> filters) {
+			this.table = new ColumnarTable(schema);
+			this.filters = filters;
+			this.filterColumns = new int[filters.size()];
+			for (int i = 0; i < filterColumns.length; i++)
+				filterColumns[i] = schema.fieldIndex(filters.get(i).fieldName());
+		}
+		
+		void parse(CSVRecord record) {
+			// Check the filters
+			for (int i = 0; i < filterColumns.length; i++) {
+				String valStr = getValue(record, filterColumns[i]);
+				if (valStr == null || valStr.isEmpty())
+					throw new RuntimeException("Don't know how to filter missing values of '" +
+							filters.get(i).fieldName() + "'");
+				if (!filters.get(i).test(valStr))
+					return;
+			}
+			
+			for (int i = 0; i < table.schema().length(); i++) {
+				ColumnBuffer column = table.column(i);
+				String valStr = getValue(record, i);
+				
+				// Fill the field if it does not exists
+				if (valStr == null || valStr.isEmpty())
+					column.appendMissing();
+				else
+					column.append(valStr);
+			}
+		}
+		
+		ColumnarTable table() {
+			return table;
+		}
+		
+		private String getValue(CSVRecord record, int i) {
+			if (i < record.size())
+				return record.get(i).trim();
+			return null;
+		}
 	}
 }
@@ -0,0 +1,123 @@
+package org.elasql.estimator.data;
+
+/**
+ * Decodes numeric fields by scanning the characters in place, so that
+ * no intermediate String is created for common values.
+ *
+ * The results are exactly the same as {@link Double#parseDouble(String)}.
+ * Plain decimal numbers with a small number of digits (e.g., "12.375") are
+ * converted with a single correctly-rounded division. The rest (e.g.,
+ * exponents or too many digits) fall back to {@link Double#parseDouble(String)}.
+ */
+final class FieldDecoder {
+
+	// The largest integer that a double can represent exactly
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+	// The powers of ten that a double can represent exactly
+	private static final double[] EXACT_POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+		1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20,
+		1e21, 1e22
+	};
+
+	private FieldDecoder() {
+	}
+
+	/**
+	 * Counts the elements in an array surrounded by "[]".
+	 */
+	static int countElements(CharSequence s) {
+		int end = trimmedEnd(s, s.length() - 1);
+		int count = 1;
+		for (int i = 1; i < end; i++) {
+			if (s.charAt(i) == ',')
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Decodes the elements of an array surrounded by "[]" into the destination
+	 * starting from the given offset.
+	 *
+	 * @return the number of decoded elements
+	 */
+	static int decodeDoubleArray(CharSequence s, double[] dest, int offset, int maxCount) {
+		// strip surrounding []
+		int end = trimmedEnd(s, s.length() - 1);
+		int count = 0;
+		int elementStart = 1;
+		for (int i = 1; i <= end; i++) {
+			if (i == end || s.charAt(i) == ',') {
+				if (count == maxCount)
+					throw new RuntimeException("Too many elements in '" + s + "'");
+				dest[offset + count] = parseDouble(s, elementStart, i);
+				count++;
+				elementStart = i + 1;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Parses the characters in [start, end) as a double.
+	 */
+	static double parseDouble(CharSequence s, int start, int end) {
+		// Trim the surrounding whitespaces as Double.parseDouble does
+		while (start < end && s.charAt(start) <= ' ')
+			start++;
+		while (end > start && s.charAt(end - 1) <= ' ')
+			end--;
+
+		int i = start;
+		boolean negative = false;
+		if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+			negative = s.charAt(i) == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int digitCount = 0;
+		int fractionDigits = 0;
+		boolean inFraction = false;
+		for (; i < end; i++) {
+			char c = s.charAt(i);
+			if (c >= '0' && c <= '9') {
+				mantissa = mantissa * 10 + (c - '0');
+				if (mantissa > MAX_EXACT_MANTISSA)
+					return parseSlowly(s, start, end);
+				digitCount++;
+				if (inFraction)
+					fractionDigits++;
+			} else if (c == '.' && !inFraction) {
+				inFraction = true;
+			} else {
+				return parseSlowly(s, start, end);
+			}
+		}
+
+		if (digitCount == 0 || fractionDigits >= EXACT_POWERS_OF_TEN.length)
+			return parseSlowly(s, start, end);
+
+		// Both numbers are exact, so a single division rounds correctly
+		double value = mantissa / EXACT_POWERS_OF_TEN[fractionDigits];
+		return negative? -value : value;
+	}
+
+	private static double parseSlowly(CharSequence s, int start, int end) {
+		return Double.parseDouble(s.subSequence(start, end).toString());
+	}
+
+	private static int trimmedEnd(CharSequence s, int end) {
+		// String.split drops trailing empty elements
+		return end - trailingCommas(s, end);
+	}
+
+	private static int trailingCommas(CharSequence s, int end) {
+		int count = 0;
+		while (end - count > 1 && s.charAt(end - count - 1) == ',')
+			count++;
+		return count;
+	}
+}
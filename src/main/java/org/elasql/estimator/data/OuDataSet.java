@@ -2,70 +2,211 @@ package org.elasql.estimator.data;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.elasql.estimator.Constants;
 
 import smile.data.DataFrame;
+import smile.data.type.StructType;
 
 public class OuDataSet {
 	
+	private static Logger logger = Logger.getLogger(OuDataSet.class.getName());
+	
 	/**
 	 * Read the data set from the given path and separate the data set
-	 * for each server.
+	 * for each server. The label files are read and joined on a pool of
+	 * loader threads while the feature file is being parsed.
 	 * 
+	 * @param loaderThreads the number of threads for parsing the feature file
+	 *                      and for processing the label files
 	 * @param rawDataDir
 	 * @return
 	 */
 	public static List<OuDataSet> loadFromRawData(int serverNum, long dataStartTime,
-			long dataEndTime, double outlinerStdThreshold, File rawDataDir) {
-		List<OuDataSet> dataSets = new ArrayList<OuDataSet>(serverNum);
+			long dataEndTime, double outlinerStdThreshold, int loaderThreads,
+			File rawDataDir) {
+		long pipelineStart = System.nanoTime();
+		// The feature file is parsed on the same pool, so the loading takes no
+		// more than the given number of threads in total
+		ForkJoinPool executor = new ForkJoinPool(Math.max(1, loaderThreads));
+		try {
+			// Read and sort the labels of each server in the background
+			CompletableFuture<Preprocessor.SortedIds> featIndexFuture =
+					new CompletableFuture<Preprocessor.SortedIds>();
+			List<CompletableFuture<ColumnarTable>> labelFutures =
+					new ArrayList<CompletableFuture<ColumnarTable>>(serverNum);
+			List<CompletableFuture<int[][]>> joinFutures =
+					new ArrayList<CompletableFuture<int[][]>>(serverNum);
+			for (int serverId = 0; serverId < serverNum; serverId++) {
+				int id = serverId;
+				CompletableFuture<ColumnarTable> labelFuture = CompletableFuture.supplyAsync(
+						() -> timed("Loading labels of server #" + id, pipelineStart,
+								() -> loadLabelFile(rawDataDir, id)), executor);
+				CompletableFuture<Preprocessor.SortedIds> labelIndexFuture = labelFuture.thenApply(
+						labels -> timed("Sorting labels of server #" + id, pipelineStart,
+								() -> Preprocessor.SortedIds.of(labels)));
+				
+				// Join the labels as soon as the features are sorted
+				joinFutures.add(labelIndexFuture.thenCombineAsync(featIndexFuture,
+						(labelIndex, featIndex) -> timed("Joining server #" + id, pipelineStart,
+								() -> Preprocessor.join(featIndex, labelIndex)), executor));
+				labelFutures.add(labelFuture);
+			}
+			
+			// Parse the features in the meantime
+			ColumnarTable featureTable = timed("Loading features", pipelineStart,
+					() -> loadFeatureFile(rawDataDir, dataStartTime, dataEndTime, executor));
+			featIndexFuture.complete(timed("Sorting features", pipelineStart,
+					() -> Preprocessor.SortedIds.of(featureTable)));
+			
+			int[][] featRows = new int[serverNum][];
+			for (int serverId = 0; serverId < serverNum; serverId++)
+				featRows[serverId] = await(joinFutures.get(serverId))[0];
+			
+			// Fan the feature columns out to the servers
+			StructType newFeatSchema = Preprocessor.newSchemaWithSeparatedArrays(
+					featureTable.schema());
+			ColumnBuffer[][] newFeatColumns = timed("Separating features", pipelineStart,
+					() -> fanOut(featureTable, newFeatSchema, featRows, executor));
+			
+			List<OuDataSet> dataSets = new ArrayList<OuDataSet>(serverNum);
+			for (int serverId = 0; serverId < serverNum; serverId++) {
+				DataFrame[] dfs = Preprocessor.toDataFrames(newFeatSchema, newFeatColumns[serverId],
+						await(labelFutures.get(serverId)), await(joinFutures.get(serverId))[1]);
+				dataSets.add(new OuDataSet(dfs[0], dfs[1], outlinerStdThreshold));
+			}
+			
+			if (logger.isLoggable(Level.INFO))
+				logger.info(String.format("Loaded the data sets of %d servers in %d ms",
+						serverNum, elapsedMillis(pipelineStart)));
+			
+			return dataSets;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Concatenates the data sets without copying them. The result reads
+	 * the rows of the given data sets in the given order.
+	 */
+	public static OuDataSet concat(List<OuDataSet> dataSets) {
+		if (dataSets.size() == 1)
+			return dataSets.get(0);
+		return new CompositeOuDataSet(dataSets, dataSets.get(0).outlinerStdThreshold);
+	}
+	
+	private static ColumnBuffer[][] fanOut(ColumnarTable featureTable, StructType newFeatSchema,
+			int[][] featRows, ExecutorService executor) {
+		// Each column is processed by a task
+		List<CompletableFuture<ColumnBuffer[]>> futures =
+				new ArrayList<CompletableFuture<ColumnBuffer[]>>(newFeatSchema.length());
+		for (int i = 0; i < newFeatSchema.length(); i++) {
+			int columnId = i;
+			futures.add(CompletableFuture.supplyAsync(
+					() -> Preprocessor.fanOut(featureTable.column(columnId),
+							newFeatSchema.field(columnId), featRows), executor));
+		}
 		
-		DataFrame featureDf = loadFeatureFile(rawDataDir, dataStartTime,
-				dataEndTime);
-		for (int serverId = 0; serverId < serverNum; serverId++) {
-			DataFrame labelDf = loadLabelFile(rawDataDir, serverId);
-			DataFrame[] dfs = Preprocessor.preprocess(featureDf, labelDf, serverId);
-			OuDataSet dataSet = new OuDataSet(dfs[0], dfs[1], outlinerStdThreshold);
-			dataSets.add(dataSet);
+		ColumnBuffer[][] newFeatColumns = new ColumnBuffer[featRows.length][newFeatSchema.length()];
+		for (int i = 0; i < newFeatSchema.length(); i++) {
+			ColumnBuffer[] serverColumns = await(futures.get(i));
+			for (int serverId = 0; serverId < featRows.length; serverId++)
+				newFeatColumns[serverId][i] = serverColumns[serverId];
 		}
+		return newFeatColumns;
+	}
+	
+	private static <T> T timed(String stage, long pipelineStart, Supplier<T> task) {
+		long stageStart = elapsedMillis(pipelineStart);
+		T result = task.get();
+		long stageEnd = elapsedMillis(pipelineStart);
+		
+		if (logger.isLoggable(Level.INFO))
+			logger.info(String.format("%s took %d ms (from %d ms to %d ms)",
+					stage, stageEnd - stageStart, stageStart, stageEnd));
 		
-		return dataSets;
+		return result;
 	}
 	
-	private static DataFrame loadFeatureFile(File rawDataDir, long startTime, long endTime) {
+	private static long elapsedMillis(long startNanos) {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+	}
+	
+	private static <T> T await(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
+	private static ColumnarTable loadFeatureFile(File rawDataDir, long startTime, long endTime,
+			ForkJoinPool pool) {
+		// Load the features that start time > warm up time
+		List<ColumnFilter> filters = Collections.singletonList(ColumnFilter.longRange(
+				Constants.FIELD_NAME_START_TIME, startTime, endTime));
+		
+		// Prefer the converted binary file
+		File binaryFilePath = new File(rawDataDir, Constants.FILE_NAME_FEATURE
+				+ ColumnarFile.FILE_EXTENSION);
+		if (ColumnarFile.isColumnarFile(binaryFilePath))
+			return ColumnarFile.loadTable(binaryFilePath, filters);
+		
 		String featureFileName = String.format("%s.csv",
 				Constants.FILE_NAME_FEATURE);
 		File featureFilePath = new File(rawDataDir, featureFileName);
-		
-		// Load the features that start time > warm up time
-		return CsvLoader.load(featureFilePath.toPath(), tuple -> {
-			long txStartTime = tuple.getLong(Constants.FIELD_NAME_START_TIME);
-			return txStartTime > startTime && txStartTime < endTime;
-		});
+		return CsvLoader.loadTable(featureFilePath.toPath(), filters, pool);
 	}
 	
-	private static DataFrame loadLabelFile(File rawDataDir, int serverId) {
+	private static ColumnarTable loadLabelFile(File rawDataDir, int serverId) {
+		// Load the labels that is as a master transaction
+		List<ColumnFilter> filters = Collections.singletonList(
+				ColumnFilter.isTrue(Constants.FIELD_NAME_IS_MASTER));
+		
+		// Prefer the converted binary file
+		File binaryFilePath = new File(rawDataDir, String.format("%s-%d%s",
+				Constants.FILE_NAME_LATENCY_PREFIX, serverId, ColumnarFile.FILE_EXTENSION));
+		if (ColumnarFile.isColumnarFile(binaryFilePath))
+			return ColumnarFile.loadTable(binaryFilePath, filters);
+		
 		String labelFileName = String.format("%s-%d.csv",
 				Constants.FILE_NAME_LATENCY_PREFIX, serverId);
 		File labelFilePath = new File(rawDataDir, labelFileName);
-		
-		// Load the labels that is as a master transaction
-		return CsvLoader.load(labelFilePath.toPath(), tuple -> 
-			tuple.getBoolean(Constants.FIELD_NAME_IS_MASTER)
-		);
+		return CsvLoader.loadTable(labelFilePath.toPath(), filters, 1);
 	}
 	
 	private DataFrame features;
 	private DataFrame labels;
 	private double outlinerStdThreshold;
 	
+	// Label name -> {mean, std}
+	private Map<String, double[]> labelStatistics = new ConcurrentHashMap<String, double[]>();
+	
 	public OuDataSet(DataFrame features, DataFrame labels, double outlinerStdThreshold) {
 		this.features = features;
 		this.labels = labels;
 		this.outlinerStdThreshold = outlinerStdThreshold;
 	}
 	
+	protected OuDataSet(double outlinerStdThreshold) {
+		this.outlinerStdThreshold = outlinerStdThreshold;
+	}
+	
 	public OuDataSet[] trainTestSplit(double trainingDataRatio) {
 		int trainingDataSize = (int) (features.size() * trainingDataRatio);
 		
@@ -88,24 +229,34 @@ public class OuDataSet {
 		// Merge the label column
 		DataFrame trainingDf = df.merge(labels.column(labelField));
 		
-		// Filter outliners
+		// Filter outliners with a row mask
+		return trainingDf.of(findInliers(labelField, getLabels(labelField)));
+	}
+	
+	protected boolean[] findInliers(String labelField, double[] labelValues) {
 		double mean = labelMean(labelField);
 		double std = labelStd(labelField);
 		double upperBound = mean + std * outlinerStdThreshold;
 		double lowerBound = mean - std * outlinerStdThreshold;
-		trainingDf = DataFrame.of(trainingDf.stream().filter(
-				row -> row.getDouble(labelField) > lowerBound && 
-				row.getDouble(labelField) < upperBound));
-		
-		return trainingDf;
+		boolean[] inliers = new boolean[labelValues.length];
+		for (int i = 0; i < labelValues.length; i++)
+			inliers[i] = labelValues[i] > lowerBound && labelValues[i] < upperBound;
+		return inliers;
 	}
 	
 	public OuDataSet union(OuDataSet dataSet) {
-		DataFrame newFeatures = features.union(dataSet.features);
-		DataFrame newLabels = labels.union(dataSet.labels);
+		DataFrame newFeatures = features.union(dataSet.getFeatures());
+		DataFrame newLabels = labels.union(dataSet.getLabels());
 		return new OuDataSet(newFeatures, newLabels, outlinerStdThreshold);
 	}
 	
+	/**
+	 * Returns the data sets that make up this data set in the order of rows.
+	 */
+	public List<OuDataSet> getParts() {
+		return Collections.singletonList(this);
+	}
+	
 	public int size() {
 		return features.size();
 	}
@@ -123,18 +274,27 @@ public class OuDataSet {
 	}
 	
 	public double labelMean(String labelField) {
-		double[] nums = labels.column(labelField).toDoubleArray();
-		return mean(nums);
+		return labelStatistics(labelField)[0];
 	}
 	
 	public double labelStd(String labelField) {
-		double[] nums = labels.column(labelField).toDoubleArray();
-		double mean = mean(nums);
-		double sum = 0.0;
-		for (double num : nums) {
-			sum += (num - mean) * (num - mean);
-		}
-		return Math.sqrt(sum / nums.length);
+		return labelStatistics(labelField)[1];
+	}
+	
+	/**
+	 * Returns the mean and the standard deviation of the label, which are
+	 * computed from a single copy of the label column and cached.
+	 */
+	private double[] labelStatistics(String labelField) {
+		return labelStatistics.computeIfAbsent(labelField, field -> {
+			double[] nums = getLabels(field);
+			double mean = mean(nums);
+			double sum = 0.0;
+			for (double num : nums) {
+				sum += (num - mean) * (num - mean);
+			}
+			return new double[] {mean, Math.sqrt(sum / nums.length)};
+		});
 	}
 	
 	private double mean(double[] nums) {
@@ -1,15 +1,11 @@
 package org.elasql.estimator.data;
 
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.Iterator;
-import java.util.List;
-import java.util.stream.Stream;
+import java.util.Arrays;
 
 import org.elasql.estimator.Constants;
+import org.elasql.estimator.utils.RadixSort;
 
 import smile.data.DataFrame;
-import smile.data.Tuple;
 import smile.data.type.DataType;
 import smile.data.type.DataTypes;
 import smile.data.type.StructField;
@@ -17,43 +13,81 @@ import smile.data.type.StructType;
 
 public class Preprocessor {
 	
-	public static DataFrame[] preprocess(DataFrame features, DataFrame labels, int serverId) {
-		Stream<Tuple> featStream = features.stream();
-		Stream<Tuple> labelStream = labels.stream();
+	/**
+	 * The transaction IDs of a table in the ascending order along with
+	 * the rows where they come from.
+	 */
+	static class SortedIds {
+		long[] ids;
+		int[] rows;
 		
-		// Separate array features
-		StructType oldFeatSchema = features.schema();
-		StructType newFeatSchema = newSchemaWithSeparatedArrays(oldFeatSchema);
-		featStream = separateArrayFeatures(featStream, oldFeatSchema, newFeatSchema, serverId);
-		
-		// Filter rows that do not appear in both sides
-		Iterator<Tuple> featIter = sort(featStream).iterator();
-		Iterator<Tuple> labelIter = sort(labelStream).iterator();
+		static SortedIds of(ColumnarTable table) {
+			long[] ids = ((ColumnBuffer.LongColumn) table.column(Constants.FIELD_NAME_ID)).array();
+			SortedIds sortedIds = new SortedIds();
+			sortedIds.rows = RadixSort.sortedIndex(ids, table.size());
+			sortedIds.ids = new long[table.size()];
+			for (int i = 0; i < sortedIds.rows.length; i++)
+				sortedIds.ids[i] = ids[sortedIds.rows[i]];
+			return sortedIds;
+		}
+	}
+	
+	/**
+	 * Walks through both sorted sides and pairs up the rows with the same ID.
+	 * 
+	 * @return the matched rows of the features and those of the labels
+	 */
+	static int[][] join(SortedIds features, SortedIds labels) {
+		int maxCount = Math.min(features.ids.length, labels.ids.length);
+		int[] featRows = new int[maxCount];
+		int[] labelRows = new int[maxCount];
+		int count = 0;
 		
-		// Join tuples
-		List<Tuple> newFeatureRows = new ArrayList<Tuple>();
-		List<Tuple> newLabelRows = new ArrayList<Tuple>();
-		Tuple featTuple = featIter.next();
-		Tuple labelTuple = labelIter.next();
-		while (featIter.hasNext() && labelIter.hasNext()) {
-			long featId = featTuple.getLong(Constants.FIELD_NAME_ID);
-			long labelId = labelTuple.getLong(Constants.FIELD_NAME_ID);
+		int fi = 0, li = 0;
+		while (fi < features.ids.length && li < labels.ids.length) {
+			long featId = features.ids[fi];
+			long labelId = labels.ids[li];
 			
 			if (featId < labelId) {
-				featTuple = featIter.next();
+				fi++;
 			} else if (featId > labelId) {
-				labelTuple = labelIter.next();
+				li++;
 			} else {
-				newFeatureRows.add(featTuple);
-				newLabelRows.add(labelTuple);
-				featTuple = featIter.next();
-				labelTuple = labelIter.next();
+				featRows[count] = features.rows[fi];
+				labelRows[count] = labels.rows[li];
+				count++;
+				fi++;
+				li++;
 			}
 		}
 		
-		// Create new DataFrame
-		DataFrame newFeatures = DataFrame.of(newFeatureRows, newFeatSchema);
-		DataFrame newLabels = DataFrame.of(newLabelRows, labels.schema());
+		return new int[][] {
+			Arrays.copyOf(featRows, count),
+			Arrays.copyOf(labelRows, count)
+		};
+	}
+	
+	/**
+	 * Gathers the rows of each server from a feature column. The column is
+	 * gathered once per server, and each gather only reads the rows of that
+	 * server, since the servers may share rows.
+	 * 
+	 * @return the new column of each server
+	 */
+	static ColumnBuffer[] fanOut(ColumnBuffer column, StructField newField,
+			int[][] serverRows) {
+		ColumnBuffer[] newColumns = new ColumnBuffer[serverRows.length];
+		for (int serverId = 0; serverId < serverRows.length; serverId++) {
+			newColumns[serverId] = separateColumn(column, newField,
+					serverRows[serverId], serverId);
+		}
+		return newColumns;
+	}
+	
+	static DataFrame[] toDataFrames(StructType newFeatSchema, ColumnBuffer[] newFeatColumns,
+			ColumnarTable labels, int[] labelRows) {
+		DataFrame newFeatures = new ColumnarTable(newFeatSchema, newFeatColumns).toDataFrame();
+		DataFrame newLabels = labels.select(labelRows).toDataFrame();
 		
 		// Drop columns
 		newLabels = newLabels.drop(Constants.FIELD_NAME_IS_MASTER,
@@ -62,33 +96,16 @@ public class Preprocessor {
 		return new DataFrame[] {newFeatures, newLabels};
 	}
 	
-	public static Stream<Tuple> separateArrayFeatures(Stream<Tuple> stream,
-			StructType oldSchema, StructType newSchema, int serverId) {
-		return stream.map(tuple -> {
-			Object[] row = new Object[oldSchema.length()];
-			
-			// Pick out server i's data from arrays
-			for (int i = 0; i < oldSchema.length(); i++) {
-	        	if (oldSchema.field(i).type == DataTypes.DoubleArrayType) {
-	        		double[] array = (double[]) tuple.get(i);
-	        		row[i] = array[serverId];
-	        	} else {
-	        		row[i] = tuple.get(i);
-	        	}
-	        }
-			
-			return Tuple.of(row, newSchema);
-		});
-	}
-	
-	public static Stream<Tuple> sort(Stream<Tuple> stream) {
-		return stream.sorted(new Comparator<Tuple>() {
-			public int compare(Tuple t1, Tuple t2) {
-				long id1 = t1.getLong(Constants.FIELD_NAME_ID);
-				long id2 = t2.getLong(Constants.FIELD_NAME_ID);
-				return (int) (id1 - id2);
-			}
-		});
+	/**
+	 * Gathers the given rows of the column. For an array column, only
+	 * the element of the given server is picked.
+	 */
+	private static ColumnBuffer separateColumn(ColumnBuffer column, StructField newField,
+			int[] rowIds, int serverId) {
+		if (column instanceof ColumnBuffer.DoubleArrayColumn)
+			return ((ColumnBuffer.DoubleArrayColumn) column).selectElement(
+					newField, rowIds, serverId);
+		return column.select(rowIds);
 	}
 	
 	public static StructType newSchemaWithSeparatedArrays(StructType schema) {
@@ -1,48 +1,104 @@
 package org.elasql.estimator.data;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.elasql.estimator.Constants;
 
 import smile.data.DataFrame;
 import smile.data.Tuple;
+import smile.data.type.DataType;
 import smile.data.type.DataTypes;
 import smile.data.type.StructType;
 
 public class TotalLatencyDataSet {
 	
-	public static TotalLatencyDataSet load(File dataSetDir, int serverCount) {
-		DataFrame featureDf = loadFeatureFile(dataSetDir);
-		DataFrame[] latencyDfs = new DataFrame[serverCount]; 
-		for (int serverId = 0; serverId < serverCount; serverId++) {
-			latencyDfs[serverId] = loadLatencyFile(dataSetDir, serverId);
+	/**
+	 * Reads the latency files and the dependencies on a pool of loader threads
+	 * while the feature file is being parsed on the same pool.
+	 */
+	public static TotalLatencyDataSet load(File dataSetDir, int serverCount,
+			int loaderThreads) {
+		ForkJoinPool executor = new ForkJoinPool(Math.max(1, loaderThreads));
+		try {
+			List<Future<DataFrame>> latencyFutures = new ArrayList<Future<DataFrame>>(serverCount);
+			for (int serverId = 0; serverId < serverCount; serverId++) {
+				int id = serverId;
+				latencyFutures.add(executor.submit(() -> loadLatencyFile(dataSetDir, id)));
+			}
+			Future<TransactionDependencies> dependencyFuture = executor.submit(() -> {
+				File dependencyFile = new File(dataSetDir, Constants.FILE_NAME_DEPENDENCY_BINARY);
+				if (!dependencyFile.exists())
+					dependencyFile = new File(dataSetDir, Constants.FILE_NAME_DEPENDENCY);
+				return TransactionDependencies.load(dependencyFile);
+			});
+			
+			DataFrame featureDf = loadFeatureFile(dataSetDir, executor);
+			DataFrame[] latencyDfs = new DataFrame[serverCount];
+			for (int serverId = 0; serverId < serverCount; serverId++) {
+				latencyDfs[serverId] = latencyFutures.get(serverId).get();
+			}
+			return new TotalLatencyDataSet(featureDf, latencyDfs, dependencyFuture.get());
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} finally {
+			executor.shutdownNow();
 		}
-		File dependencyFile = new File(dataSetDir, Constants.FILE_NAME_DEPENDENCY);
-		TransactionDependencies dependencies = TransactionDependencies.load(dependencyFile);
-		return new TotalLatencyDataSet(featureDf, latencyDfs, dependencies);
 	}
 	
-	private static DataFrame loadFeatureFile(File rawDataDir) {
+	private static DataFrame loadFeatureFile(File rawDataDir, ForkJoinPool pool) {
+		// Prefer the converted binary file
+		File binaryFilePath = new File(rawDataDir, Constants.FILE_NAME_FEATURE
+				+ ColumnarFile.FILE_EXTENSION);
+		if (ColumnarFile.isColumnarFile(binaryFilePath))
+			return ColumnarFile.load(binaryFilePath, Collections.emptyList());
+		
 		String featureFileName = String.format("%s.csv",
 				Constants.FILE_NAME_FEATURE);
 		File featureFilePath = new File(rawDataDir, featureFileName);
 		
 		// Load the features that start time > warm up time
-		return CsvLoader.load(featureFilePath.toPath(), tuple -> true);
+		return CsvLoader.loadTable(featureFilePath.toPath(), Collections.emptyList(), pool)
+				.toDataFrame();
 	}
 	
 	private static DataFrame loadLatencyFile(File rawDataDir, int serverId) {
+		// Load the labels that is as a master transaction
+		List<ColumnFilter> filters = Collections.singletonList(
+				ColumnFilter.isTrue(Constants.FIELD_NAME_IS_MASTER));
+		
+		// Prefer the converted binary file
+		File binaryFilePath = new File(rawDataDir, String.format("%s-%d%s",
+				Constants.FILE_NAME_LATENCY_PREFIX, serverId, ColumnarFile.FILE_EXTENSION));
+		if (ColumnarFile.isColumnarFile(binaryFilePath))
+			return ColumnarFile.load(binaryFilePath, filters);
+		
 		String labelFileName = String.format("%s-%d.csv",
 				Constants.FILE_NAME_LATENCY_PREFIX, serverId);
 		File labelFilePath = new File(rawDataDir, labelFileName);
+		return CsvLoader.load(labelFilePath.toPath(), filters);
+	}
+	
+	private static class ColumnMapping {
+		final String[] featureNames;
+		final int[] columnIds;
 		
-		// Load the labels that is as a master transaction
-		return CsvLoader.load(labelFilePath.toPath(), tuple -> 
-			tuple.getBoolean(Constants.FIELD_NAME_IS_MASTER)
-		);
+		ColumnMapping(String[] featureNames, int[] columnIds) {
+			this.featureNames = featureNames;
+			this.columnIds = columnIds;
+		}
 	}
 	
 	private static class ServerRidPair {
@@ -65,6 +121,9 @@ public class TotalLatencyDataSet {
 	private StructType featureDfSchema;
 	private StructType serverFeatureSchema;
 	
+	// The columns of the features in the last requested feature order
+	private volatile ColumnMapping lastColumnMapping;
+	
 	public TotalLatencyDataSet(
 		DataFrame featureDf,
 		DataFrame[] latencyDfs,
@@ -95,6 +154,37 @@ public class TotalLatencyDataSet {
 		return separateArrayFeatures(tuple);
 	}
 	
+	/**
+	 * Puts the features of each server into the given vectors in the given
+	 * order of features. A boolean feature is 1.0 for true and 0.0 for false.
+	 * 
+	 * @param featureNames the order of the features
+	 * @param vectors the vector of each server
+	 * @return false if there is no feature data for the transaction
+	 */
+	public boolean getFeatureVectors(Long txNum, String[] featureNames, double[][] vectors) {
+		Integer rowId = txNumToFeatureRid.get(txNum);
+		if (rowId == null)
+			return false;
+		
+		int[] columnIds = columnIds(featureNames);
+		for (int i = 0; i < columnIds.length; i++) {
+			int columnId = columnIds[i];
+			DataType type = featureDfSchema.field(columnId).type;
+			if (type == DataTypes.DoubleArrayType) {
+				double[] array = (double[]) featureDf.get(rowId, columnId);
+				for (int serverId = 0; serverId < serverCount; serverId++)
+					vectors[serverId][i] = array[serverId];
+			} else {
+				double value = type.isBoolean()? (featureDf.getBoolean(rowId, columnId)? 1.0 : 0.0) :
+					featureDf.getDouble(rowId, columnId);
+				for (int serverId = 0; serverId < serverCount; serverId++)
+					vectors[serverId][i] = value;
+			}
+		}
+		return true;
+	}
+	
 	public Long getStartTime(Long txNum) {
 		int rowId = txNumToFeatureRid.get(txNum);
 		return featureDf.getLong(rowId, Constants.FIELD_NAME_START_TIME);
@@ -156,6 +246,18 @@ public class TotalLatencyDataSet {
 				.newSchemaWithSeparatedArrays(featureDfSchema);
 	}
 	
+	private int[] columnIds(String[] featureNames) {
+		ColumnMapping mapping = lastColumnMapping;
+		if (mapping == null || mapping.featureNames != featureNames) {
+			int[] columnIds = new int[featureNames.length];
+			for (int i = 0; i < featureNames.length; i++)
+				columnIds[i] = featureDfSchema.fieldIndex(featureNames[i]);
+			mapping = new ColumnMapping(featureNames, columnIds);
+			lastColumnMapping = mapping;
+		}
+		return mapping.columnIds;
+	}
+	
 	private Tuple[] separateArrayFeatures(Tuple tuple) {
 		Tuple[] serverTuples = new Tuple[serverCount];
 		
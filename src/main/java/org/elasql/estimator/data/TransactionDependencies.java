@@ -1,9 +1,18 @@
 package org.elasql.estimator.data;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -12,7 +21,13 @@ import java.util.Map;
 
 public class TransactionDependencies {
 	
+	private static final int MAGIC_NUMBER = 0x45444550; // "EDEP"
+	private static final int FORMAT_VERSION = 1;
+	
 	public static TransactionDependencies load(File inputFile) {
+		if (isBinaryFile(inputFile))
+			return loadBinary(inputFile);
+		
 		try (BufferedReader reader = new BufferedReader(new FileReader(inputFile))) {
 			Map<Long, List<Long>> dependencyMapping = new HashMap<Long, List<Long>>();
 			
@@ -42,6 +57,42 @@ public class TransactionDependencies {
 		}
 	}
 	
+	private static boolean isBinaryFile(File inputFile) {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(inputFile))) {
+			return inputFile.length() >= Integer.BYTES && in.readInt() == MAGIC_NUMBER;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	private static TransactionDependencies loadBinary(File inputFile) {
+		try (FileChannel channel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			buffer.getInt(); // magic number
+			int version = buffer.getInt();
+			if (version != FORMAT_VERSION)
+				throw new RuntimeException(String.format(
+						"Unsupported format version %d of '%s' (expect %d)",
+						version, inputFile, FORMAT_VERSION));
+			
+			int txCount = buffer.getInt();
+			Map<Long, List<Long>> dependencyMapping = new HashMap<Long, List<Long>>(txCount * 2);
+			for (int i = 0; i < txCount; i++) {
+				Long txNum = buffer.getLong();
+				int dependencyCount = buffer.getInt();
+				List<Long> dependencies = new ArrayList<Long>(dependencyCount);
+				for (int j = 0; j < dependencyCount; j++)
+					dependencies.add(buffer.getLong());
+				dependencyMapping.put(txNum, dependencies);
+			}
+			
+			return new TransactionDependencies(dependencyMapping);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to load transaction dependencies from "
+					+ inputFile, e);
+		}
+	}
+	
 	private Map<Long, List<Long>> dependencyMapping = new HashMap<Long, List<Long>>();
 	
 	private TransactionDependencies(Map<Long, List<Long>> dependencyMapping) {
@@ -55,4 +106,26 @@ public class TransactionDependencies {
 		}
 		return dependencies;
 	}
+	
+	/**
+	 * Saves the dependencies in a binary format, which can be read
+	 * by {@link #load(File)} as well.
+	 */
+	public void saveAsBinary(File outputFile) {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(outputFile)))) {
+			out.writeInt(MAGIC_NUMBER);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(dependencyMapping.size());
+			for (Map.Entry<Long, List<Long>> entry : dependencyMapping.entrySet()) {
+				out.writeLong(entry.getKey());
+				out.writeInt(entry.getValue().size());
+				for (Long dependentTx : entry.getValue())
+					out.writeLong(dependentTx);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to save transaction dependencies to "
+					+ outputFile, e);
+		}
+	}
 }
@@ -0,0 +1,238 @@
+package org.elasql.estimator.model;
+
+import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import smile.base.cart.InternalNode;
+import smile.base.cart.Node;
+import smile.base.cart.NominalNode;
+import smile.base.cart.OrdinalNode;
+import smile.base.cart.RegressionNode;
+import smile.regression.RandomForest;
+import smile.regression.RegressionTree;
+
+/**
+ * A random forest compiled into flat arrays. The nodes of all the trees are
+ * saved in parallel arrays, and the two children of a node are saved next to
+ * each other, so that a prediction only walks through arrays.
+ *
+ * The predictions are exactly the same as {@link RandomForest#predict}, given
+ * a feature vector in the order of {@link RandomForest#schema()}.
+ */
+public class CompiledForest {
+
+	private static final int LEAF = -1;
+
+	private static final Field ORDINAL_VALUE = accessibleField(OrdinalNode.class, "value");
+	private static final Field NOMINAL_VALUE = accessibleField(NominalNode.class, "value");
+
+	public static CompiledForest compile(RandomForest forest) {
+		RegressionTree[] trees = forest.trees();
+		Builder builder = new Builder();
+		int[] roots = new int[trees.length];
+		for (int i = 0; i < trees.length; i++)
+			roots[i] = builder.addTree(trees[i].root());
+		return builder.build(roots);
+	}
+
+	// The root of each tree, in the order of the trees in the forest
+	private final int[] roots;
+
+	// For each node
+	private final int[] features; // LEAF for a leaf
+	private final double[] thresholds;
+	private final boolean[] nominal;
+	private final int[] trueChildren; // the false child follows the true child
+	private final double[] leafValues;
+
+	// The sum of the mean depths of the leaves of all trees
+	private final double meanPathLength;
+
+	private CompiledForest(int[] roots, int[] features, double[] thresholds,
+			boolean[] nominal, int[] trueChildren, double[] leafValues) {
+		this.roots = roots;
+		this.features = features;
+		this.thresholds = thresholds;
+		this.nominal = nominal;
+		this.trueChildren = trueChildren;
+		this.leafValues = leafValues;
+		this.meanPathLength = meanPathLength();
+	}
+
+	/**
+	 * Predicts the value of the given feature vector without allocating
+	 * any object.
+	 */
+	public double predict(double[] x) {
+		double sum = 0.0;
+		for (int root : roots) {
+			int node = root;
+			int feature;
+			while ((feature = features[node]) != LEAF) {
+				boolean branch = nominal[node]? x[feature] == thresholds[node] :
+					x[feature] <= thresholds[node];
+				node = branch? trueChildren[node] : trueChildren[node] + 1;
+			}
+			sum += leafValues[node];
+		}
+		return sum / roots.length;
+	}
+
+	/**
+	 * Predicts the values of a batch of feature vectors. Each tree runs over
+	 * the whole batch before the next one, so that its nodes stay in the
+	 * cache. The values are the same as {@link #predict(double[])}.
+	 */
+	public void predict(double[][] xs, double[] values) {
+		Arrays.fill(values, 0, xs.length, 0.0);
+		for (int root : roots) {
+			for (int i = 0; i < xs.length; i++) {
+				double[] x = xs[i];
+				int node = root;
+				int feature;
+				while ((feature = features[node]) != LEAF) {
+					boolean branch = nominal[node]? x[feature] == thresholds[node] :
+						x[feature] <= thresholds[node];
+					node = branch? trueChildren[node] : trueChildren[node] + 1;
+				}
+				values[i] += leafValues[node];
+			}
+		}
+		for (int i = 0; i < xs.length; i++)
+			values[i] /= roots.length;
+	}
+
+	public int treeCount() {
+		return roots.length;
+	}
+
+	public int nodeCount() {
+		return features.length;
+	}
+
+	/**
+	 * Returns the expected number of the internal nodes visited by a
+	 * prediction, assuming that every leaf is equally likely.
+	 */
+	public double predictionCost() {
+		return meanPathLength;
+	}
+
+	private double meanPathLength() {
+		int[] depths = new int[features.length];
+		double sum = 0.0;
+		for (int root : roots) {
+			// The children always come after the parents in the arrays
+			long depthSum = 0;
+			int leafCount = 0;
+			int end = root + 1;
+			for (int node = root; node < end; node++) {
+				if (features[node] == LEAF) {
+					depthSum += depths[node];
+					leafCount++;
+				} else {
+					int trueChild = trueChildren[node];
+					depths[trueChild] = depths[trueChild + 1] = depths[node] + 1;
+					end = Math.max(end, trueChild + 2);
+				}
+			}
+			sum += (double) depthSum / leafCount;
+		}
+		return sum;
+	}
+
+	private static class Builder {
+		List<Integer> features = new ArrayList<Integer>();
+		List<Double> thresholds = new ArrayList<Double>();
+		List<Boolean> nominal = new ArrayList<Boolean>();
+		List<Integer> trueChildren = new ArrayList<Integer>();
+		List<Double> leafValues = new ArrayList<Double>();
+
+		/**
+		 * Adds the nodes of a tree in the breadth-first order.
+		 *
+		 * @return the index of the root
+		 */
+		int addTree(Node root) {
+			int rootId = newNode();
+			Deque<Object[]> queue = new ArrayDeque<Object[]>();
+			queue.add(new Object[] {root, rootId});
+			while (!queue.isEmpty()) {
+				Object[] entry = queue.poll();
+				Node node = (Node) entry[0];
+				int nodeId = (Integer) entry[1];
+
+				if (node instanceof InternalNode) {
+					InternalNode internal = (InternalNode) node;
+					int trueChildId = newNode();
+					int falseChildId = newNode();
+					features.set(nodeId, internal.feature());
+					thresholds.set(nodeId, threshold(internal));
+					nominal.set(nodeId, internal instanceof NominalNode);
+					trueChildren.set(nodeId, trueChildId);
+					queue.add(new Object[] {internal.trueChild(), trueChildId});
+					queue.add(new Object[] {internal.falseChild(), falseChildId});
+				} else if (node instanceof RegressionNode) {
+					leafValues.set(nodeId, ((RegressionNode) node).output());
+				} else {
+					throw new RuntimeException("Unsupported node type: " + node.getClass());
+				}
+			}
+			return rootId;
+		}
+
+		CompiledForest build(int[] roots) {
+			int nodeCount = features.size();
+			int[] featureArray = new int[nodeCount];
+			double[] thresholdArray = new double[nodeCount];
+			boolean[] nominalArray = new boolean[nodeCount];
+			int[] trueChildArray = new int[nodeCount];
+			double[] leafValueArray = new double[nodeCount];
+			for (int i = 0; i < nodeCount; i++) {
+				featureArray[i] = features.get(i);
+				thresholdArray[i] = thresholds.get(i);
+				nominalArray[i] = nominal.get(i);
+				trueChildArray[i] = trueChildren.get(i);
+				leafValueArray[i] = leafValues.get(i);
+			}
+			return new CompiledForest(roots, featureArray, thresholdArray,
+					nominalArray, trueChildArray, leafValueArray);
+		}
+
+		private int newNode() {
+			features.add(LEAF);
+			thresholds.add(0.0);
+			nominal.add(false);
+			trueChildren.add(LEAF);
+			leafValues.add(0.0);
+			return features.size() - 1;
+		}
+
+		private static double threshold(InternalNode node) {
+			try {
+				if (node instanceof OrdinalNode)
+					return ORDINAL_VALUE.getDouble(node);
+				if (node instanceof NominalNode)
+					return NOMINAL_VALUE.getInt(node);
+			} catch (IllegalAccessException e) {
+				throw new RuntimeException(e);
+			}
+			throw new RuntimeException("Unsupported node type: " + node.getClass());
+		}
+	}
+
+	// Smile does not expose the split values of the nodes
+	private static Field accessibleField(Class<?> cls, String name) {
+		try {
+			Field field = cls.getDeclaredField(name);
+			field.setAccessible(true);
+			return field;
+		} catch (NoSuchFieldException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
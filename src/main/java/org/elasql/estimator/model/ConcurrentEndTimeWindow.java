@@ -0,0 +1,104 @@
+package org.elasql.estimator.model;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe version of {@link EndTimeWindow} without locks. A writer
+ * claims a slot by swapping its transaction number for a marker, which only
+ * succeeds if the slot holds an older transaction, and publishes its own
+ * transaction number after writing the end time. A reader checks that the
+ * transaction number of the slot stays the same around reading the end time.
+ */
+class ConcurrentEndTimeWindow {
+
+	// Transaction numbers start from 1, so this marks an empty slot
+	private static final long EMPTY = Long.MIN_VALUE;
+
+	// Marks a slot whose end time is being written
+	private static final long WRITING = Long.MIN_VALUE + 1;
+
+	private final long horizon;
+	private final int mask;
+	private final AtomicLongArray txNums;
+	private final AtomicLongArray endTimeBits;
+
+	// The largest transaction number that has been recorded
+	private final AtomicLong maxTxNum = new AtomicLong(Long.MIN_VALUE);
+
+	/**
+	 * @param horizon the number of the most recent transaction numbers to keep
+	 */
+	ConcurrentEndTimeWindow(int horizon) {
+		if (horizon < 1 || horizon > (1 << 30))
+			throw new IllegalArgumentException("The horizon must be in [1, 2^30]: " + horizon);
+
+		int capacity = Integer.highestOneBit(horizon);
+		if (capacity < horizon)
+			capacity <<= 1;
+
+		this.horizon = horizon;
+		this.mask = capacity - 1;
+		this.txNums = new AtomicLongArray(capacity);
+		this.endTimeBits = new AtomicLongArray(capacity);
+		for (int slot = 0; slot < capacity; slot++)
+			txNums.set(slot, EMPTY);
+	}
+
+	/**
+	 * Records the end time. The transactions that fall out of the horizon
+	 * are evicted. The record of an evicted transaction, or of a transaction
+	 * whose slot has been taken by a newer one, is ignored.
+	 */
+	void put(long txNum, double endTime) {
+		if (maxTxNum.accumulateAndGet(txNum, Math::max) != txNum && isEvicted(txNum))
+			return;
+
+		// Claim the slot, so that no other writer can mix its end time
+		// with this one or overwrite a newer record
+		int slot = (int) txNum & mask;
+		long current;
+		do {
+			current = txNums.get(slot);
+
+			// The writer holding the slot only writes two values, so wait
+			// for it to find out whose record is newer
+			while (current == WRITING)
+				current = txNums.get(slot);
+			if (current >= txNum)
+				return;
+		} while (!txNums.compareAndSet(slot, current, WRITING));
+
+		endTimeBits.set(slot, Double.doubleToRawLongBits(endTime));
+		txNums.set(slot, txNum);
+	}
+
+	/**
+	 * Returns the end time of the transaction, or NaN if it is not recorded
+	 * or has been evicted.
+	 */
+	double get(long txNum) {
+		if (isEvicted(txNum))
+			return Double.NaN;
+
+		int slot = (int) txNum & mask;
+		if (txNums.get(slot) != txNum)
+			return Double.NaN;
+		long bits = endTimeBits.get(slot);
+
+		// Another transaction may have taken the slot in the meantime. It
+		// must be at least a horizon newer, which evicts this transaction.
+		if (txNums.get(slot) != txNum || isEvicted(txNum))
+			return Double.NaN;
+		return Double.longBitsToDouble(bits);
+	}
+
+	/**
+	 * Checks if the transaction is older than the horizon of the largest
+	 * recorded transaction number.
+	 */
+	boolean isEvicted(long txNum) {
+		long max = maxTxNum.get();
+		return max != Long.MIN_VALUE && txNum <= max - horizon;
+	}
+}
@@ -0,0 +1,151 @@
+package org.elasql.estimator.model;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.elasql.estimator.Constants;
+
+import smile.data.Tuple;
+import smile.data.type.StructType;
+
+/**
+ * A thread-safe sum-max model for the schedulers that route transactions
+ * on multiple threads. The predictions run in parallel without locks. Only
+ * the end times of the transactions are shared, in a lock-free window for
+ * the decided transactions and a concurrent map for the undecided ones.
+ * 
+ * Unlike {@link SumMaxSequentialModel}, the transactions may be predicted
+ * in any order, but a transaction must be predicted before the transactions
+ * that depend on it. Each predicted transaction must be decided later.
+ */
+public class ConcurrentSumMaxModel {
+	
+	private List<SingleServerMasterModel> serverOuModels;
+	private int serverCount;
+	private String[] featureNames;
+	
+	private ConcurrentEndTimeWindow decidedEndTimes;
+	private ConcurrentHashMap<Long, double[]> pendingEndTimes; // for each server
+	
+	// Shared by all the models, since a thread only predicts one transaction at a time
+	private static final ThreadLocal<double[]> OU_LATENCIES =
+			ThreadLocal.withInitial(() -> new double[Constants.OU_NAMES.length]);
+	
+	public ConcurrentSumMaxModel(List<SingleServerMasterModel> models) {
+		this(models, SumMaxSequentialModel.DEFAULT_END_TIME_HORIZON);
+	}
+	
+	/**
+	 * @param endTimeHorizon the number of the most recent transactions whose
+	 *                       predicted end times are kept. A dependency on an
+	 *                       older transaction is regarded as finished.
+	 */
+	public ConcurrentSumMaxModel(List<SingleServerMasterModel> models, int endTimeHorizon) {
+		serverOuModels = models;
+		serverCount = models.size();
+		featureNames = models.get(0).featureNames();
+		for (SingleServerMasterModel model : models) {
+			if (!Arrays.equals(featureNames, model.featureNames()))
+				throw new IllegalArgumentException("The models of all servers must have the same features");
+		}
+		decidedEndTimes = new ConcurrentEndTimeWindow(endTimeHorizon);
+		pendingEndTimes = new ConcurrentHashMap<Long, double[]>();
+	}
+	
+	public double[] predictTxnLatency(long txNum, List<Long> dependentTxns, 
+			long txnStartTime, Tuple[] serverFeatures) {
+		double[][] featureVectors = new double[serverCount][];
+		for (int serverId = 0; serverId < serverCount; serverId++)
+			featureVectors[serverId] = serverOuModels.get(serverId).toFeatureVector(serverFeatures[serverId]);
+		
+		double[] latencyPredictions = new double[serverCount];
+		predictTxnLatency(txNum, dependentTxns, txnStartTime, featureVectors, latencyPredictions);
+		return latencyPredictions;
+	}
+	
+	/**
+	 * Predicts the latency of a transaction on each server.
+	 * 
+	 * @param serverFeatures the feature vector of each server in the order of
+	 *                       {@link #featureNames()}
+	 * @param latencyPredictions the array to put the latency of each server
+	 */
+	public void predictTxnLatency(long txNum, List<Long> dependentTxns, 
+			long txnStartTime, double[][] serverFeatures, double[] latencyPredictions) {
+		double dependentEndTime = maxOverDependentTxns(dependentTxns);
+		
+		double[] ouLatencies = OU_LATENCIES.get();
+		double[] endTimePredictions = new double[serverCount];
+		for (int serverId = 0; serverId < serverCount; serverId++) {
+			serverOuModels.get(serverId).predict(SumMaxSequentialModel.PREDICTED_OUS,
+					serverFeatures[serverId], ouLatencies);
+			double ou3EndTime = txnStartTime + SumMaxSequentialModel.latencyTilOu3(ouLatencies);
+			ou3EndTime = Math.max(dependentEndTime, ou3EndTime);
+			double totalEndTime = ou3EndTime + SumMaxSequentialModel.latencyAfterOu3(ouLatencies);
+			
+			endTimePredictions[serverId] = totalEndTime;
+			latencyPredictions[serverId] = totalEndTime - txnStartTime;
+		}
+		
+		if (pendingEndTimes.putIfAbsent(txNum, endTimePredictions) != null)
+			throw new RuntimeException("The tx." + txNum + " has been predicted");
+	}
+	
+	public void decideTxnDest(long txNum, int routeDest) {
+		double[] endTimePredictions = pendingEndTimes.get(txNum);
+		if (endTimePredictions == null)
+			throw new RuntimeException("The tx." + txNum + " does not wait for a route");
+		
+		// Record it before removing it, so that it can always be found
+		decidedEndTimes.put(txNum, endTimePredictions[routeDest]);
+		pendingEndTimes.remove(txNum);
+	}
+	
+	public StructType schema() {
+		return serverOuModels.get(0).schema();
+	}
+	
+	public int serverCount() {
+		return serverCount;
+	}
+	
+	public String[] featureNames() {
+		return featureNames.clone();
+	}
+	
+	private double maxOverDependentTxns(List<Long> dependentTxns) {
+		double maxEndTime = 0.0;
+		for (int i = 0; i < dependentTxns.size(); i++) {
+			long dependentTxn = dependentTxns.get(i);
+			double prevEndTime = endTimePrediction(dependentTxn);
+			if (Double.isNaN(prevEndTime)) {
+				// Finished long before this transaction
+				if (decidedEndTimes.isEvicted(dependentTxn))
+					continue;
+				throw new RuntimeException("There is no record for " + dependentTxn);
+			}
+			maxEndTime = Math.max(maxEndTime, prevEndTime);
+		}
+		return maxEndTime;
+	}
+	
+	private double endTimePrediction(long txNum) {
+		double endTime = decidedEndTimes.get(txNum);
+		if (!Double.isNaN(endTime))
+			return endTime;
+		
+		// Take the earliest end time of an undecided transaction, as
+		// SumMaxSequentialModel does
+		double[] endTimePredictions = pendingEndTimes.get(txNum);
+		if (endTimePredictions != null) {
+			double earliestEndTime = Double.MAX_VALUE;
+			for (double prediction : endTimePredictions)
+				earliestEndTime = Math.min(earliestEndTime, prediction);
+			return earliestEndTime;
+		}
+		
+		// It may be decided after the first check
+		return decidedEndTimes.get(txNum);
+	}
+}
@@ -0,0 +1,75 @@
+package org.elasql.estimator.model;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the predicted end times of the recent transactions in a ring buffer
+ * indexed by the transaction numbers. Only the transactions within the
+ * horizon of the largest transaction number are kept, so the memory stays
+ * the same no matter how many transactions are recorded.
+ */
+class EndTimeWindow {
+
+	private final long horizon;
+	private final int mask;
+	private final long[] txNums;
+	private final double[] endTimes;
+
+	// The largest transaction number that has been recorded
+	private long maxTxNum = Long.MIN_VALUE;
+
+	/**
+	 * @param horizon the number of the most recent transaction numbers to keep
+	 */
+	EndTimeWindow(int horizon) {
+		if (horizon < 1 || horizon > (1 << 30))
+			throw new IllegalArgumentException("The horizon must be in [1, 2^30]: " + horizon);
+
+		int capacity = Integer.highestOneBit(horizon);
+		if (capacity < horizon)
+			capacity <<= 1;
+
+		this.horizon = horizon;
+		this.mask = capacity - 1;
+		this.txNums = new long[capacity];
+		this.endTimes = new double[capacity];
+
+		// Transaction numbers start from 1, so this marks an empty slot
+		Arrays.fill(txNums, Long.MIN_VALUE);
+	}
+
+	/**
+	 * Records the end time. The transactions that fall out of the horizon
+	 * are evicted. The record of an evicted transaction is ignored.
+	 */
+	void put(long txNum, double endTime) {
+		if (txNum > maxTxNum)
+			maxTxNum = txNum;
+		else if (isEvicted(txNum))
+			return;
+
+		int slot = (int) txNum & mask;
+		txNums[slot] = txNum;
+		endTimes[slot] = endTime;
+	}
+
+	/**
+	 * Returns the end time of the transaction, or NaN if it is not recorded
+	 * or has been evicted.
+	 */
+	double get(long txNum) {
+		if (isEvicted(txNum))
+			return Double.NaN;
+
+		int slot = (int) txNum & mask;
+		return txNums[slot] == txNum? endTimes[slot] : Double.NaN;
+	}
+
+	/**
+	 * Checks if the transaction is older than the horizon of the largest
+	 * recorded transaction number.
+	 */
+	boolean isEvicted(long txNum) {
+		return maxTxNum != Long.MIN_VALUE && txNum <= maxTxNum - horizon;
+	}
+}
@@ -0,0 +1,215 @@
+package org.elasql.estimator.model;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import smile.regression.RandomForest;
+
+/**
+ * Saves the progress of grid search to a directory, so that a grid search
+ * can be resumed after it stops. Each cross-validation result is appended to
+ * a journal file as soon as it is finished, and the final model of each OU
+ * is saved to its own file.
+ */
+public class GridSearchJournal implements Closeable {
+	private static Logger logger = Logger.getLogger(GridSearchJournal.class.getName());
+
+	public static final String FILE_NAME_JOURNAL = "grid-search-journal.csv";
+
+	private static final String MODEL_FILE_PREFIX = "grid-search-model-";
+
+	private static final String JOURNAL_HEADER = "Server ID,OU Name,Tree Count,Max Depth,"
+			+ "Sample Size,Fold Count,CV Mean Fit Time,CV Mean MSE";
+
+	/**
+	 * Opens the journal in the given directory.
+	 *
+	 * @param resume whether to keep the saved progress. If false, the progress
+	 *               and the saved models are discarded.
+	 */
+	public static GridSearchJournal open(File dir, boolean resume) {
+		File journalFile = new File(dir, FILE_NAME_JOURNAL);
+		try {
+			if (!resume)
+				deleteOuModels(dir);
+
+			GridSearchJournal journal = new GridSearchJournal(dir, journalFile);
+			if (resume && journalFile.exists())
+				journal.readJournal();
+			journal.openForAppend(resume);
+			return journal;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private File dir;
+	private File journalFile;
+	private FileOutputStream out;
+	private boolean resume;
+
+	// Key -> {CV Mean Fit Time, CV Mean MSE}
+	private Map<String, double[]> results = new HashMap<String, double[]>();
+
+	private GridSearchJournal(File dir, File journalFile) {
+		this.dir = dir;
+		this.journalFile = journalFile;
+	}
+
+	/**
+	 * Returns the saved fit time and MSE of the parameters, or null if there is none.
+	 */
+	public synchronized double[] find(int serverId, String ouName, int treeCount, int maxDepth,
+			int sampleSize, int foldCount) {
+		return results.get(key(serverId, ouName, treeCount, maxDepth, sampleSize, foldCount));
+	}
+
+	/**
+	 * Appends a result and forces it to the disk.
+	 */
+	public synchronized void append(int serverId, String ouName, int treeCount, int maxDepth,
+			int sampleSize, int foldCount, double fitTime, double mse) {
+		String key = key(serverId, ouName, treeCount, maxDepth, sampleSize, foldCount);
+		String line = key + "," + fitTime + "," + mse + "\n";
+		try {
+			out.write(line.getBytes(StandardCharsets.UTF_8));
+			out.getFD().sync();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		results.put(key, new double[] {fitTime, mse});
+	}
+
+	/**
+	 * Returns the saved final model of the OU trained with the given
+	 * parameters, or null if there is none.
+	 */
+	public RandomForest loadOuModel(int serverId, int ouId, int treeCount, int maxDepth) {
+		File modelFile = ouModelFile(serverId, ouId, treeCount, maxDepth);
+		if (!resume || !modelFile.exists())
+			return null;
+
+		try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(modelFile))) {
+			return (RandomForest) in.readObject();
+		} catch (IOException | ClassNotFoundException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void saveOuModel(int serverId, int ouId, int treeCount, int maxDepth,
+			RandomForest model) {
+		File modelFile = ouModelFile(serverId, ouId, treeCount, maxDepth);
+		File tempFile = new File(dir, modelFile.getName() + ".tmp");
+
+		// Write to a temporary file first, so that a crash leaves no broken model
+		try {
+			try (FileOutputStream fileOut = new FileOutputStream(tempFile);
+					ObjectOutputStream objectOut = new ObjectOutputStream(fileOut)) {
+				objectOut.writeObject(model);
+				objectOut.flush();
+				fileOut.getFD().sync();
+			}
+			Files.move(tempFile.toPath(), modelFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		try {
+			out.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// The parameters are part of the name, so a model is only reused
+	// when the same parameters are chosen again
+	private File ouModelFile(int serverId, int ouId, int treeCount, int maxDepth) {
+		return new File(dir, String.format("%s%d-%d-t%d-d%d.bin", MODEL_FILE_PREFIX,
+				serverId, ouId, treeCount, maxDepth));
+	}
+
+	private static void deleteOuModels(File dir) throws IOException {
+		File[] modelFiles = dir.listFiles((parent, name) -> name.startsWith(MODEL_FILE_PREFIX)
+				&& (name.endsWith(".bin") || name.endsWith(".bin.tmp")));
+		if (modelFiles == null)
+			return;
+
+		for (File modelFile : modelFiles)
+			Files.delete(modelFile.toPath());
+	}
+
+	private void readJournal() throws IOException {
+		byte[] bytes = Files.readAllBytes(journalFile.toPath());
+
+		// Only the lines that end with a new line are complete
+		int completeLength = 0;
+		int lineStart = 0;
+		for (int i = 0; i < bytes.length; i++) {
+			if (bytes[i] != '\n')
+				continue;
+
+			String line = new String(bytes, lineStart, i - lineStart, StandardCharsets.UTF_8);
+			if (lineStart > 0)
+				parseLine(line);
+			lineStart = i + 1;
+			completeLength = i + 1;
+		}
+
+		// Drop the partial line that a crash may leave
+		if (completeLength < bytes.length) {
+			try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+				file.setLength(completeLength);
+			}
+		}
+
+		if (logger.isLoggable(Level.INFO))
+			logger.info(String.format("Resuming grid search with %d results in '%s'",
+					results.size(), journalFile));
+	}
+
+	private void parseLine(String line) {
+		String[] values = line.split(",");
+		if (values.length != 8)
+			return;
+
+		String key = String.join(",", values[0], values[1], values[2], values[3],
+				values[4], values[5]);
+		results.put(key, new double[] {
+			Double.parseDouble(values[6]),
+			Double.parseDouble(values[7])
+		});
+	}
+
+	private void openForAppend(boolean resume) throws IOException {
+		this.resume = resume;
+		boolean append = resume && journalFile.exists() && journalFile.length() > 0;
+		out = new FileOutputStream(journalFile, append);
+		if (!append) {
+			out.write((JOURNAL_HEADER + "\n").getBytes(StandardCharsets.UTF_8));
+			out.getFD().sync();
+		}
+	}
+
+	private static String key(int serverId, String ouName, int treeCount, int maxDepth,
+			int sampleSize, int foldCount) {
+		return String.join(",", Integer.toString(serverId), ouName, Integer.toString(treeCount),
+				Integer.toString(maxDepth), Integer.toString(sampleSize), Integer.toString(foldCount));
+	}
+}
@@ -3,31 +3,70 @@ package org.elasql.estimator.model;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 
 import org.elasql.estimator.Constants;
 import org.elasql.estimator.data.OuDataSet;
 import org.elasql.estimator.utils.ReportBuilder;
 
 import smile.data.DataFrame;
+import smile.data.Tuple;
 import smile.data.formula.Formula;
 import smile.regression.RandomForest;
+import smile.validation.Bag;
 import smile.validation.CrossValidation;
-import smile.validation.RegressionValidations;
+import smile.validation.metric.MSE;
 
 public class GridSearcher {
 	private static Logger logger = Logger.getLogger(GridSearcher.class.getName());
 	
 	private static final String REPORT_HEADER = "OU Name, Tree Count, Max Depth, CV Mean Fit Time, CV Mean MSE";
+	private static final String HALVING_REPORT_HEADER = REPORT_HEADER + ", Sample Size, Fold Count";
 	
 	private static final int MAX_TREE_COUNT = 256;
 	private static final int MAX_DEPTH = 32;
 	private static final double BEST_PERFORMANCE_RATIO = 0.01;
 	
+	// Successive halving keeps 1 / HALVING_FACTOR of the candidates in each round,
+	// and scores them on HALVING_FACTOR times more data in the next round
+	private static final int HALVING_FACTOR = 3;
+	private static final int MIN_HALVING_SAMPLE_SIZE = 500;
+	private static final int MIN_HALVING_FOLD_COUNT = 2;
+	
+	public enum SearchMode {
+		
+		/**
+		 * Cross-validates every parameter combination on the whole data set.
+		 */
+		FULL,
+		
+		/**
+		 * Cross-validates every parameter combination on a small sample first,
+		 * then promotes the best ones to larger samples and more folds until
+		 * the remaining ones are cross-validated on the whole data set.
+		 */
+		SUCCESSIVE_HALVING;
+		
+		public static SearchMode fromName(String name) {
+			return valueOf(name.toUpperCase().replace('-', '_'));
+		}
+	}
+	
 	private static class TestResult {
 		int treeCount;
 		int maxDepth;
@@ -40,11 +79,51 @@ public class GridSearcher {
 		}
 	}
 	
+	/**
+	 * A fold of cross-validation whose data are shared by all the parameters.
+	 */
+	private static class Fold {
+		int foldId;
+		DataFrame trainDf;
+		DataFrame testDf;
+		double[] truth;
+		
+		Fold(int foldId, Formula formula, DataFrame df, Bag bag) {
+			this.foldId = foldId;
+			trainDf = df.of(bag.samples);
+			testDf = df.of(bag.oob);
+			truth = formula.y(testDf).toDoubleArray();
+		}
+	}
+	
 	private int foldCountForCv;
+	private SearchMode searchMode;
+	private ForkJoinPool pool;
+	private GridSearchJournal journal;
+	private int serverId;
+	private long randomSeed;
 	private ReportBuilder reportBuilder;
 	
 	public GridSearcher(int foldCountForCv) {
+		this(foldCountForCv, SearchMode.FULL, ForkJoinPool.commonPool(), null, 0, 0L);
+	}
+	
+	/**
+	 * @param pool the pool that cross-validates the parameters in parallel
+	 * @param journal the journal that saves the progress, or null if the progress
+	 *                is not saved
+	 * @param serverId the server whose model is searched
+	 * @param randomSeed the seed that determines the folds and the seeds of all
+	 *                   the trees
+	 */
+	public GridSearcher(int foldCountForCv, SearchMode searchMode, ForkJoinPool pool,
+			GridSearchJournal journal, int serverId, long randomSeed) {
 		this.foldCountForCv = foldCountForCv;
+		this.searchMode = searchMode;
+		this.pool = pool;
+		this.journal = journal;
+		this.serverId = serverId;
+		this.randomSeed = randomSeed;
 	}
 	
 	public SingleServerMasterModel gridSearch(OuDataSet trainingSet) {
@@ -52,42 +131,62 @@ public class GridSearcher {
 		newReport();
 		
 		Map<String, RandomForest> models = new HashMap<String, RandomForest>();
-
-		// For each OU
-		for (int ouId = 0; ouId < Constants.OU_NAMES.length; ouId++) {
-			String ouName = Constants.OU_NAMES[ouId];
-			RandomForest forest = gridSearch(ouName, trainingSet);
-			models.put(ouName, forest);
+		
+		// Draw the seeds of the OUs in the same way as SingleServerMasterModel.fit
+		Random random = new Random(randomSeed);
+		long[] ouSeeds = new long[Constants.OU_NAMES.length];
+		for (int ouId = 0; ouId < ouSeeds.length; ouId++)
+			ouSeeds[ouId] = SingleServerMasterModel.nextSeed(random);
+		
+		// Run on the pool so that the parallel streams in it, including those
+		// training the trees, are bounded by the pool
+		try {
+			pool.submit(() -> {
+				// For each OU
+				for (int ouId = 0; ouId < Constants.OU_NAMES.length; ouId++) {
+					String ouName = Constants.OU_NAMES[ouId];
+					RandomForest forest = gridSearch(ouId, trainingSet, ouSeeds[ouId]);
+					models.put(ouName, forest);
+				}
+			}).get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
 		}
 		
 		return new SingleServerMasterModel(models);
 	}
 	
-	private RandomForest gridSearch(String ouName, OuDataSet trainingSet) {
+	private RandomForest gridSearch(int ouId, OuDataSet trainingSet, long seed) {
+		String ouName = Constants.OU_NAMES[ouId];
+		
+		// The seeds of the folds, the cross-validations and the final model
+		// are drawn in a fixed order
+		Random random = new Random(seed);
 		Formula formula = Formula.lhs(ouName);
 		DataFrame df = trainingSet.toTrainingDataFrame(ouName);
 		
-		double minMse = Double.MAX_VALUE;
-		TestResult bestResult = null;
-		List<TestResult> allResults = new ArrayList<TestResult>();
-		
 		if (logger.isLoggable(Level.INFO))
 			logger.info(String.format("Grid searching a random forest for '%s'...", ouName));
 		
 		// Grid search
-		for (int treeCount = 1; treeCount <= MAX_TREE_COUNT; treeCount *= 2) {
-			for (int maxDepth = 1; maxDepth <= MAX_DEPTH; maxDepth *= 2) {
-				double mse = crossValidation(ouName, formula, df,
-						treeCount, maxDepth);
-				TestResult result = new TestResult(treeCount, maxDepth, mse);
-				allResults.add(result);
-				
-				// Update the best result
-				if (mse < minMse) {
-					minMse = mse;
-					bestResult = result;
-				}
-			}
+		List<TestResult> allResults;
+		if (searchMode == SearchMode.SUCCESSIVE_HALVING)
+			allResults = successiveHalving(ouName, formula, df, random);
+		else
+			allResults = crossValidateAll(ouName, formula, df, gridCandidates(),
+					materializeFolds(formula, df, foldCountForCv, random.nextLong()),
+					SingleServerMasterModel.nextSeed(random));
+		
+		// Find the best result
+		TestResult bestResult = null;
+		for (TestResult result : allResults) {
+			if (bestResult == null || result.mse < bestResult.mse)
+				bestResult = result;
 		}
 		
 		// Instead of taking the best one, we take the smaller parameters with slightly lower
@@ -106,28 +205,274 @@ public class GridSearcher {
 					"Found the best parameters for '%s' are (tree count = %d, max depth = %d)",
 					ouName, theChosenOne.treeCount, theChosenOne.maxDepth));
 		
+		// Reuse the model saved by the previous run
+		if (journal != null) {
+			RandomForest savedModel = journal.loadOuModel(serverId, ouId,
+					theChosenOne.treeCount, theChosenOne.maxDepth);
+			if (savedModel != null)
+				return savedModel;
+		}
+		
 		// Train a model with the best parameters
-		return RandomForest.fit(Formula.lhs(ouName), df,
-				theChosenOne.treeCount, df.ncols() / 3, theChosenOne.maxDepth, 100, 5, 1.0);
+		long modelSeed = SingleServerMasterModel.nextSeed(random);
+		RandomForest model = RandomForest.fit(Formula.lhs(ouName), df,
+				theChosenOne.treeCount, df.ncols() / 3, theChosenOne.maxDepth, 100, 5, 1.0,
+				LongStream.range(modelSeed, modelSeed + theChosenOne.treeCount));
+		if (journal != null)
+			journal.saveOuModel(serverId, ouId, theChosenOne.treeCount,
+					theChosenOne.maxDepth, model);
+		return model;
+	}
+	
+	// All the parameter combinations from the smallest to the largest
+	private List<TestResult> gridCandidates() {
+		List<TestResult> candidates = new ArrayList<TestResult>();
+		for (int treeCount = 1; treeCount <= MAX_TREE_COUNT; treeCount *= 2) {
+			for (int maxDepth = 1; maxDepth <= MAX_DEPTH; maxDepth *= 2) {
+				candidates.add(new TestResult(treeCount, maxDepth, Double.NaN));
+			}
+		}
+		return candidates;
+	}
+	
+	/**
+	 * Returns the results of the last round, which are all cross-validated on
+	 * the whole data set, in the same order as the grid.
+	 */
+	private List<TestResult> successiveHalving(String ouName, Formula formula, DataFrame df,
+			Random random) {
+		List<TestResult> candidates = gridCandidates();
+		
+		// Each round keeps 1 / HALVING_FACTOR of the candidates until a few remain
+		int roundCount = 1;
+		for (int count = candidates.size(); count > HALVING_FACTOR; count = ceilDiv(count, HALVING_FACTOR))
+			roundCount++;
+		
+		List<TestResult> results = null;
+		for (int round = 0; round < roundCount; round++) {
+			int roundsLeft = roundCount - 1 - round;
+			
+			// The sample grows and the folds increase as the rounds go
+			long sampleSize = df.size();
+			for (int i = 0; i < roundsLeft; i++)
+				sampleSize /= HALVING_FACTOR;
+			sampleSize = Math.min(df.size(), Math.max(MIN_HALVING_SAMPLE_SIZE, sampleSize));
+			int foldCount = Math.max(Math.min(MIN_HALVING_FOLD_COUNT, foldCountForCv),
+					foldCountForCv - roundsLeft);
+			
+			if (logger.isLoggable(Level.INFO))
+				logger.info(String.format("Successive halving for '%s': round %d of %d, "
+						+ "%d candidates, %d samples, %d folds", ouName, round + 1, roundCount,
+						candidates.size(), sampleSize, foldCount));
+			
+			DataFrame sample = evenlySpacedSample(df, (int) sampleSize);
+			results = crossValidateAll(ouName, formula, sample, candidates,
+					materializeFolds(formula, sample, foldCount, random.nextLong()),
+					SingleServerMasterModel.nextSeed(random));
+			
+			// Promote the best ones while keeping the order of the grid
+			if (round < roundCount - 1) {
+				List<TestResult> ranked = new ArrayList<TestResult>(results);
+				ranked.sort(Comparator.comparingDouble(result -> result.mse));
+				Set<TestResult> promoted = new HashSet<TestResult>(
+						ranked.subList(0, ceilDiv(ranked.size(), HALVING_FACTOR)));
+				candidates = new ArrayList<TestResult>();
+				for (TestResult result : results) {
+					if (promoted.contains(result))
+						candidates.add(result);
+				}
+			}
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * Splits the shuffled rows into folds as {@link CrossValidation#of(int, int)}
+	 * does, but shuffles them with the given seed.
+	 */
+	private static List<Fold> materializeFolds(Formula formula, DataFrame df, int foldCount,
+			long shuffleSeed) {
+		int[] rows = new int[df.size()];
+		for (int i = 0; i < rows.length; i++)
+			rows[i] = i;
+		Random random = new Random(shuffleSeed);
+		for (int i = rows.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int row = rows[i];
+			rows[i] = rows[j];
+			rows[j] = row;
+		}
+		
+		Bag[] bags = CrossValidation.of(rows.length, foldCount, false);
+		List<Fold> folds = new ArrayList<Fold>(foldCount);
+		for (int foldId = 0; foldId < bags.length; foldId++) {
+			Bag bag = new Bag(shuffled(rows, bags[foldId].samples), shuffled(rows, bags[foldId].oob));
+			folds.add(new Fold(foldId, formula, df, bag));
+		}
+		return folds;
+	}
+	
+	private static int[] shuffled(int[] rows, int[] indices) {
+		int[] result = new int[indices.length];
+		for (int i = 0; i < indices.length; i++)
+			result[i] = rows[indices[i]];
+		return result;
+	}
+	
+	/**
+	 * Cross-validates the candidates. For each max depth, a forest with
+	 * the largest tree count is trained once per fold, and each smaller tree
+	 * count is scored with the first trees of that forest. The pairs of
+	 * max depth and fold are trained in parallel. The candidates with
+	 * a result in the journal are skipped.
+	 * 
+	 * @param seed the seed of the trees. Each pair of max depth and fold
+	 *             derives its own seeds from it, so a resumed search trains
+	 *             the same forests.
+	 */
+	private List<TestResult> crossValidateAll(String ouName, Formula formula, DataFrame df,
+			List<TestResult> candidates, List<Fold> folds, long seed) {
+		int sampleSize = df.size();
+		int foldCount = folds.size();
+		
+		// "Tree Count,Max Depth" -> {Mean Fit Time, Mean MSE}
+		Map<String, double[]> metrics = new ConcurrentHashMap<String, double[]>();
+		
+		// Max Depth -> Tree Counts without results
+		Map<Integer, List<Integer>> treeCountsByDepth = new LinkedHashMap<Integer, List<Integer>>();
+		for (TestResult candidate : candidates) {
+			double[] savedMetrics = journal == null? null : journal.find(serverId, ouName,
+					candidate.treeCount, candidate.maxDepth, sampleSize, foldCount);
+			if (savedMetrics != null) {
+				metrics.put(candidate.treeCount + "," + candidate.maxDepth, savedMetrics);
+			} else {
+				treeCountsByDepth.computeIfAbsent(candidate.maxDepth,
+						depth -> new ArrayList<Integer>()).add(candidate.treeCount);
+			}
+		}
+		
+		// The results of a max depth are saved once all its folds finish
+		treeCountsByDepth.entrySet().parallelStream().forEach(entry -> {
+			int maxDepth = entry.getKey();
+			int maxTreeCount = Collections.max(entry.getValue());
+			
+			// The streams keep the order of the folds
+			List<double[][]> foldMetrics = folds.parallelStream()
+					.map(fold -> crossValidateFold(formula, df, fold, maxDepth, maxTreeCount,
+							foldSeed(seed, maxDepth, fold.foldId)))
+					.collect(Collectors.toList());
+			
+			// Sum up in the order of folds, so that the means do not depend on scheduling
+			for (int treeCount : entry.getValue()) {
+				double fitTime = 0.0;
+				double mse = 0.0;
+				for (double[][] metricsOfFold : foldMetrics) {
+					fitTime += metricsOfFold[treeCount][0];
+					mse += metricsOfFold[treeCount][1];
+				}
+				fitTime /= foldCount;
+				mse /= foldCount;
+				
+				metrics.put(treeCount + "," + maxDepth, new double[] {fitTime, mse});
+				if (journal != null)
+					journal.append(serverId, ouName, treeCount, maxDepth,
+							sampleSize, foldCount, fitTime, mse);
+			}
+		});
+		
+		// Record the results in the order of the candidates
+		List<TestResult> results = new ArrayList<TestResult>();
+		for (TestResult candidate : candidates) {
+			double[] candidateMetrics = metrics.get(candidate.treeCount + "," + candidate.maxDepth);
+			recordResult(ouName, candidate.treeCount, candidate.maxDepth, candidateMetrics[0],
+					candidateMetrics[1], sampleSize, foldCount);
+			results.add(new TestResult(candidate.treeCount, candidate.maxDepth, candidateMetrics[1]));
+		}
+		return results;
+	}
+	
+	/**
+	 * Trains a forest with the given max depth on a fold and scores every
+	 * prefix of its trees. The fit time of k trees is their share of
+	 * the fit time of the whole forest.
+	 * 
+	 * @return the fit time and the MSE of the first k trees at index k
+	 */
+	private double[][] crossValidateFold(Formula formula, DataFrame df, Fold fold,
+			int maxDepth, int maxTreeCount, long seed) {
+		long startTime = System.nanoTime();
+		RandomForest forest = RandomForest.fit(formula, fold.trainDf,
+				maxTreeCount, df.ncols() / 3, maxDepth, 100, 5, 1.0,
+				LongStream.range(seed, seed + maxTreeCount));
+		double fitTime = (System.nanoTime() - startTime) / 1E6;
+		
+		double[][] predictions = predictWithFirstTrees(forest, fold.testDf, maxTreeCount);
+		double[][] metrics = new double[maxTreeCount + 1][2];
+		for (int treeCount = 1; treeCount <= maxTreeCount; treeCount++) {
+			metrics[treeCount][0] = fitTime * treeCount / maxTreeCount;
+			metrics[treeCount][1] = MSE.of(fold.truth, predictions[treeCount]);
+		}
+		return metrics;
+	}
+	
+	/**
+	 * Predicts the data with the first k trees of the forest for every k,
+	 * in the same way as a forest of k trees does.
+	 * 
+	 * @return the predictions of the first k trees at index k
+	 */
+	private static double[][] predictWithFirstTrees(RandomForest forest, DataFrame df,
+			int maxTreeCount) {
+		RandomForest.Model[] models = forest.models();
+		double[][] predictions = new double[maxTreeCount + 1][df.size()];
+		for (int rowId = 0; rowId < df.size(); rowId++) {
+			Tuple x = forest.formula().x(df.get(rowId));
+			double sum = 0.0;
+			for (int k = 1; k <= maxTreeCount; k++) {
+				sum += models[k - 1].tree.predict(x);
+				predictions[k][rowId] = sum / k;
+			}
+		}
+		return predictions;
+	}
+	
+	// Takes the rows that are evenly spread over the data set
+	private static DataFrame evenlySpacedSample(DataFrame df, int sampleSize) {
+		if (sampleSize >= df.size())
+			return df;
+		
+		int[] rows = new int[sampleSize];
+		for (int i = 0; i < sampleSize; i++)
+			rows[i] = (int) ((long) i * df.size() / sampleSize);
+		return df.of(rows);
+	}
+	
+	// Derived from the max depth and the fold instead of drawn in order,
+	// since the pairs are trained in parallel and may be skipped by the journal
+	private static long foldSeed(long seed, int maxDepth, int foldId) {
+		Random random = new Random(seed ^ ((long) maxDepth << 32 | foldId));
+		return SingleServerMasterModel.nextSeed(random);
 	}
 	
-	private double crossValidation(String ouName,
-			Formula formula, DataFrame df, int treeCount, int maxDepth) {
-		RegressionValidations<RandomForest> rv = CrossValidation.regression(
-			foldCountForCv, formula, df, (f, d) -> RandomForest.fit(f, d,
-					treeCount, df.ncols() / 3, maxDepth, 100, 5, 1.0)
-		);
-		recordResult(ouName, treeCount, maxDepth, rv.avg.fitTime, rv.avg.mse);
-		return rv.avg.mse;
+	private static int ceilDiv(int x, int y) {
+		return (x + y - 1) / y;
 	}
 	
 	private void newReport() {
-		reportBuilder = new ReportBuilder(REPORT_HEADER);
+		if (searchMode == SearchMode.SUCCESSIVE_HALVING)
+			reportBuilder = new ReportBuilder(HALVING_REPORT_HEADER);
+		else
+			reportBuilder = new ReportBuilder(REPORT_HEADER);
 	}
 	
-	private void recordResult(String ouName, int treeCount, int maxDepth, double fitTime, double mse) {
-		reportBuilder.writeRow(String.format("%s, %d, %d, %f, %f",
-				ouName, treeCount, maxDepth, fitTime, mse));
+	private void recordResult(String ouName, int treeCount, int maxDepth, double fitTime, double mse,
+			int sampleSize, int foldCount) {
+		String row = String.format("%s, %d, %d, %f, %f",
+				ouName, treeCount, maxDepth, fitTime, mse);
+		if (searchMode == SearchMode.SUCCESSIVE_HALVING)
+			row += String.format(", %d, %d", sampleSize, foldCount);
+		reportBuilder.writeRow(row);
 	}
 	
 	public void generateTrainingReport(File reportPath) {
@@ -9,8 +9,17 @@ import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 
 import org.elasql.estimator.Constants;
+import org.elasql.estimator.OperatingUnit;
 import org.elasql.estimator.data.OuDataSet;
 
 import smile.data.DataFrame;
@@ -20,26 +29,82 @@ import smile.data.type.StructType;
 import smile.regression.RandomForest;
 
 public class SingleServerMasterModel implements Serializable {
+	private static Logger logger = Logger.getLogger(SingleServerMasterModel.class.getName());
+	
 	private static final long serialVersionUID = 20220412001L;
 	
+	/**
+	 * Trains the models of all OUs concurrently on the given pool. Since
+	 * the trees of a random forest are also trained in parallel streams, which
+	 * run on the pool that starts them, the pool caps the total parallelism.
+	 * 
+	 * @param pool the pool that trains the models
+	 * @param randomSeed the seed that determines the seeds of all the trees
+	 */
 	public static SingleServerMasterModel fit(OuDataSet trainingSet,
-			ModelParameters modelParameters) {
+			ModelParameters modelParameters, ForkJoinPool pool, long randomSeed) {
+		// Draw the seeds of the OUs in a fixed order, so that the results
+		// do not depend on the order of training
+		Random random = new Random(randomSeed);
+		long[] ouSeeds = new long[Constants.OU_NAMES.length];
+		for (int ouId = 0; ouId < ouSeeds.length; ouId++)
+			ouSeeds[ouId] = nextSeed(random);
+		
+		long[] trainingTimes = new long[Constants.OU_NAMES.length];
+		RandomForest[] forests;
+		try {
+			forests = pool.submit(() -> IntStream.range(0, Constants.OU_NAMES.length).parallel()
+					.mapToObj(ouId -> {
+						long startTime = System.nanoTime();
+						RandomForest forest = fit(trainingSet, Constants.OU_NAMES[ouId],
+								modelParameters.treeCount(Constants.OU_NAMES[ouId]),
+								modelParameters.maxDepth(Constants.OU_NAMES[ouId]),
+								ouSeeds[ouId]);
+						trainingTimes[ouId] = System.nanoTime() - startTime;
+						return forest;
+					}).toArray(RandomForest[]::new)
+			).get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		
 		Map<String, RandomForest> models = new HashMap<String, RandomForest>();
-
-		// For each OU
 		for (int ouId = 0; ouId < Constants.OU_NAMES.length; ouId++) {
-			String ouName = Constants.OU_NAMES[ouId];
-			Formula formula = Formula.lhs(ouName);
-			DataFrame df = trainingSet.toTrainingDataFrame(ouName);
-			RandomForest forest = RandomForest.fit(formula, df,
-					modelParameters.treeCount(ouName), df.ncols() / 3,
-					modelParameters.maxDepth(ouName), 100, 5, 1.0);
-			models.put(ouName, forest);
+			models.put(Constants.OU_NAMES[ouId], forests[ouId]);
+			
+			if (logger.isLoggable(Level.INFO))
+				logger.info(String.format("Training the model of '%s' took %d ms",
+						Constants.OU_NAMES[ouId],
+						TimeUnit.NANOSECONDS.toMillis(trainingTimes[ouId])));
 		}
 		
 		return new SingleServerMasterModel(models);
 	}
 	
+	/**
+	 * Draws the first seed of the trees of a forest. Smile only applies a seed
+	 * larger than 1, and the seeds of the trees must not overflow.
+	 */
+	static long nextSeed(Random random) {
+		return (random.nextLong() >>> 2) + 2;
+	}
+	
+	private static RandomForest fit(OuDataSet trainingSet, String ouName,
+			int treeCount, int maxDepth, long seed) {
+		Formula formula = Formula.lhs(ouName);
+		DataFrame df = trainingSet.toTrainingDataFrame(ouName);
+		
+		// Each tree needs a distinct seed
+		LongStream treeSeeds = LongStream.range(seed, seed + treeCount);
+		return RandomForest.fit(formula, df, treeCount, df.ncols() / 3,
+				maxDepth, 100, 5, 1.0, treeSeeds);
+	}
+	
 	public static SingleServerMasterModel loadFromFile(File modelFilePath) throws IOException, ClassNotFoundException {
 		SingleServerMasterModel model = null;
 		try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(modelFilePath))) {
@@ -50,15 +115,131 @@ public class SingleServerMasterModel implements Serializable {
 	
 	private Map<String, RandomForest> ouModels;
 	
+	// The order of the values in a feature vector, fixed when the models are trained
+	private String[] featureNames;
+	
+	// Compiled from the forests after training or loading
+	private transient Map<String, CompiledForest> compiledModels;
+	private transient CompiledForest[] compiledModelsByOu; // indexed by OU ID
+	private transient volatile FieldMapping lastFieldMapping;
+	
+	private static class FieldMapping {
+		final StructType tupleSchema;
+		final int[] fieldIds;
+		
+		FieldMapping(StructType tupleSchema, int[] fieldIds) {
+			this.tupleSchema = tupleSchema;
+			this.fieldIds = fieldIds;
+		}
+	}
+	
 	SingleServerMasterModel(Map<String, RandomForest> models) {
 		this.ouModels = models;
+		this.featureNames = fieldNames(schema());
+		compileModels();
 	}
 	
 	public double predict(String ouName, Tuple features) {
-		RandomForest model = ouModels.get(ouName);
+		return predict(ouName, toFeatureVector(features));
+	}
+	
+	/**
+	 * Predicts the latency of an OU with a feature vector, whose values
+	 * are in the order of {@link #featureNames()}. A boolean feature
+	 * is 1.0 for true and 0.0 for false.
+	 */
+	public double predict(String ouName, double[] features) {
+		CompiledForest model = compiledModels.get(ouName);
 		return model.predict(features);
 	}
 	
+	public double predict(OperatingUnit ou, double[] features) {
+		return compiledModelsByOu[ou.ordinal()].predict(features);
+	}
+	
+	/**
+	 * Predicts the latencies of all the OUs with the same features, which
+	 * are only converted once.
+	 * 
+	 * @return the latencies indexed by the ordinals of {@link OperatingUnit}
+	 */
+	public double[] predictAll(Tuple features) {
+		double[] latencies = new double[compiledModelsByOu.length];
+		predictAll(toFeatureVector(features), latencies);
+		return latencies;
+	}
+	
+	/**
+	 * Predicts the latencies of all the OUs without allocating any object.
+	 * 
+	 * @param features the feature vector in the order of {@link #featureNames()}
+	 * @param latencies the array to put the latencies, indexed by the ordinals
+	 *                  of {@link OperatingUnit}
+	 */
+	public void predictAll(double[] features, double[] latencies) {
+		for (int ouId = 0; ouId < compiledModelsByOu.length; ouId++)
+			latencies[ouId] = compiledModelsByOu[ouId].predict(features);
+	}
+	
+	/**
+	 * Predicts the latencies of the given OUs without allocating any object.
+	 * The latencies of the other OUs are left unchanged.
+	 * 
+	 * @param ous the OUs to predict
+	 * @param features the feature vector in the order of {@link #featureNames()}
+	 * @param latencies the array to put the latencies, indexed by the ordinals
+	 *                  of {@link OperatingUnit}
+	 */
+	public void predict(OperatingUnit[] ous, double[] features, double[] latencies) {
+		for (OperatingUnit ou : ous)
+			latencies[ou.ordinal()] = compiledModelsByOu[ou.ordinal()].predict(features);
+	}
+	
+	/**
+	 * Predicts the latencies of the given OUs for a batch of feature vectors.
+	 * The latencies of the other OUs are left unchanged.
+	 * 
+	 * @param ous the OUs to predict
+	 * @param features the feature vectors in the order of {@link #featureNames()}
+	 * @param latencies the arrays to put the latencies, indexed by the ordinals
+	 *                  of {@link OperatingUnit} and then the vectors
+	 */
+	public void predict(OperatingUnit[] ous, double[][] features, double[][] latencies) {
+		for (OperatingUnit ou : ous)
+			compiledModelsByOu[ou.ordinal()].predict(features, latencies[ou.ordinal()]);
+	}
+	
+	/**
+	 * Places the features of the tuple in the order of {@link #featureNames()}.
+	 */
+	public double[] toFeatureVector(Tuple features) {
+		int[] fieldIds = fieldIds(features.schema());
+		StructType schema = schema();
+		double[] vector = new double[fieldIds.length];
+		for (int i = 0; i < vector.length; i++) {
+			if (schema.field(i).type.isBoolean())
+				vector[i] = features.getBoolean(fieldIds[i])? 1.0 : 0.0;
+			else
+				vector[i] = features.getDouble(fieldIds[i]);
+		}
+		return vector;
+	}
+	
+	/**
+	 * Returns the expected number of the tree nodes visited to predict the
+	 * given OUs once.
+	 */
+	public double predictionCost(OperatingUnit[] ous) {
+		double cost = 0.0;
+		for (OperatingUnit ou : ous)
+			cost += compiledModelsByOu[ou.ordinal()].predictionCost();
+		return cost;
+	}
+	
+	public String[] featureNames() {
+		return featureNames.clone();
+	}
+	
 	public double[] predict(String ouName, DataFrame features) {
 		RandomForest model = ouModels.get(ouName);
 		return model.predict(features);
@@ -79,4 +260,45 @@ public class SingleServerMasterModel implements Serializable {
 	public StructType schema() {
 		return ouModels.values().iterator().next().schema();
 	}
+	
+	private void compileModels() {
+		compiledModels = new HashMap<String, CompiledForest>();
+		compiledModelsByOu = new CompiledForest[Constants.OU_NAMES.length];
+		for (int ouId = 0; ouId < Constants.OU_NAMES.length; ouId++) {
+			CompiledForest model = CompiledForest.compile(ouModels.get(Constants.OU_NAMES[ouId]));
+			compiledModels.put(Constants.OU_NAMES[ouId], model);
+			compiledModelsByOu[ouId] = model;
+		}
+	}
+	
+	// The tuples usually share a few schemas, so the field IDs of the last
+	// schema are cached to avoid looking up the fields by name
+	private int[] fieldIds(StructType tupleSchema) {
+		FieldMapping mapping = lastFieldMapping;
+		if (mapping == null || mapping.tupleSchema != tupleSchema) {
+			int[] fieldIds = new int[featureNames.length];
+			for (int i = 0; i < fieldIds.length; i++)
+				fieldIds[i] = tupleSchema.fieldIndex(featureNames[i]);
+			mapping = new FieldMapping(tupleSchema, fieldIds);
+			lastFieldMapping = mapping;
+		}
+		return mapping.fieldIds;
+	}
+	
+	private static String[] fieldNames(StructType schema) {
+		String[] names = new String[schema.length()];
+		for (int i = 0; i < names.length; i++)
+			names[i] = schema.field(i).name;
+		return names;
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		
+		// The models saved before the feature order was recorded
+		if (featureNames == null)
+			featureNames = fieldNames(schema());
+		
+		compileModels();
+	}
 }
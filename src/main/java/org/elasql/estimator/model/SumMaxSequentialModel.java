@@ -1,8 +1,12 @@
 package org.elasql.estimator.model;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.elasql.estimator.Constants;
+import org.elasql.estimator.OperatingUnit;
 
 import smile.data.Tuple;
 import smile.data.type.StructType;
@@ -14,21 +18,93 @@ import smile.data.type.StructType;
  */
 public class SumMaxSequentialModel {
 	
+	public static final int DEFAULT_END_TIME_HORIZON = 100_000;
+	public static final int DEFAULT_ROUTING_WINDOW = 1;
+	
+	// Measured with ParallelServersBenchmark for 2 to 8 servers, a prediction
+	// visits a node in about 10 to 22 ns, while handing the servers to a pool
+	// adds about 6 to 10 us at p50 and 19 to 54 us at p99. Since n servers in
+	// parallel save at most 1 - 1/n of the time, the pool breaks even at about
+	// 750 nodes at p50 and 2000 to 3800 nodes at p99. This covers the p99.
+	public static final double DEFAULT_PARALLEL_MIN_COST = 4000.0;
+	
+	private static final long NO_TXN = Long.MIN_VALUE;
+	
+	// The OUs that the model adds up. OU3 is left out, since the time
+	// waiting for locks comes from the end times of the dependencies.
+	static final OperatingUnit[] PREDICTED_OUS = {
+		OperatingUnit.OU0_BROADCAST,
+		OperatingUnit.OU0_ROUTE,
+		OperatingUnit.OU1_GENERATE_PLAN,
+		OperatingUnit.OU2_INITIALIZE_THREAD,
+		OperatingUnit.OU4_READ_FROM_LOCAL,
+		OperatingUnit.OU5M_READ_FROM_REMOTE,
+		OperatingUnit.OU6_EXECUTE_ARITHMETIC_LOGIC,
+		OperatingUnit.OU7_WRITE_TO_LOCAL,
+		OperatingUnit.OU8_COMMIT
+	};
+	
 	private List<SingleServerMasterModel> serverOuModels;
 	private int serverCount;
-	private Map<Long, Double> prevEndTimePredictions;
+	private String[] featureNames;
+	private EndTimeWindow prevEndTimePredictions;
+	
+	// Reused for the predictions of each server
+	private double[] ouLatencies;
+	
+	// For predicting the servers in parallel, or null if not enabled
+	private ForkJoinPool serverPool;
+	private int serversPerTask;
+	private double[][] serverOuLatencies;
 	
-	// For the last predicted transaction
 	private long lastTxNum;
-	private double[] lastTxnEndTimePredictions; // for each server
-	private boolean lastRouteDecided = true;
+	
+	// The transactions that are predicted but wait for their routes. They are
+	// kept in a hash table that probes linearly from the slot txNum & mask,
+	// which is at most half full, so a transaction is found in a few probes.
+	private int routingWindow;
+	private int pendingMask;
+	private long[] pendingTxNums; // NO_TXN for an empty slot
+	private double[][] pendingEndTimePredictions; // for each slot and server
+	private int pendingCount;
 	
 	public SumMaxSequentialModel(List<SingleServerMasterModel> models) {
+		this(models, DEFAULT_END_TIME_HORIZON, DEFAULT_ROUTING_WINDOW);
+	}
+	
+	/**
+	 * @param endTimeHorizon the number of the most recent transactions whose
+	 *                       predicted end times are kept. A dependency on an
+	 *                       older transaction is regarded as finished, so
+	 *                       it does not delay the dependent transaction.
+	 * @param routingWindow the number of the predicted transactions that may
+	 *                      wait for their routes at the same time. The routes
+	 *                      may be decided in any order.
+	 */
+	public SumMaxSequentialModel(List<SingleServerMasterModel> models, int endTimeHorizon,
+			int routingWindow) {
+		if (routingWindow < 1 || routingWindow > (1 << 29))
+			throw new IllegalArgumentException("The routing window must be in [1, 2^29]: " + routingWindow);
+		
 		serverOuModels = models;
 		serverCount = models.size();
-		prevEndTimePredictions = new HashMap<Long, Double>();
+		featureNames = models.get(0).featureNames();
+		for (SingleServerMasterModel model : models) {
+			if (!Arrays.equals(featureNames, model.featureNames()))
+				throw new IllegalArgumentException("The models of all servers must have the same features");
+		}
+		ouLatencies = new double[Constants.OU_NAMES.length];
+		prevEndTimePredictions = new EndTimeWindow(endTimeHorizon);
 		lastTxNum = 0;
-		lastTxnEndTimePredictions = new double[serverCount];
+		
+		int capacity = Integer.highestOneBit(routingWindow) << 1;
+		if (capacity < routingWindow * 2)
+			capacity <<= 1;
+		this.routingWindow = routingWindow;
+		pendingMask = capacity - 1;
+		pendingTxNums = new long[capacity];
+		Arrays.fill(pendingTxNums, NO_TXN);
+		pendingEndTimePredictions = new double[capacity][serverCount];
 	}
 	
 	public double predictOuLatency(String ouName, int serverId, Tuple features) {
@@ -37,31 +113,155 @@ public class SumMaxSequentialModel {
 	
 	public double[] predictNextTxnLatency(long txNum, List<Long> dependentTxns, 
 			long txnStartTime, Tuple[] serverFeatures) {
+		double[][] featureVectors = new double[serverCount][];
+		for (int serverId = 0; serverId < serverCount; serverId++)
+			featureVectors[serverId] = serverOuModels.get(serverId).toFeatureVector(serverFeatures[serverId]);
+		
+		double[] latencyPredictions = new double[serverCount];
+		predictNextTxnLatency(txNum, dependentTxns, txnStartTime, featureVectors, latencyPredictions);
+		return latencyPredictions;
+	}
+	
+	/**
+	 * Predicts the latency of the next transaction on each server without
+	 * allocating any array.
+	 * 
+	 * @param serverFeatures the feature vector of each server in the order of
+	 *                       {@link #featureNames()}
+	 * @param latencyPredictions the array to put the latency of each server
+	 */
+	public void predictNextTxnLatency(long txNum, List<Long> dependentTxns, 
+			long txnStartTime, double[][] serverFeatures, double[] latencyPredictions) {
 		if (txNum <= lastTxNum)
 			throw new RuntimeException("Transaction features should be fed in the increasing order"
 					+ " (last tx: " + lastTxNum + ", current tx: " + txNum + ")");
-		if (!lastRouteDecided)
-			throw new RuntimeException("The route for the tx." + lastTxNum + " have not been decided yet");
-		
-		double[] latencyPredictions = new double[serverCount];
+		if (pendingCount == routingWindow)
+			throw new RuntimeException("The routes for " + pendingCount + " transactions (last tx: "
+					+ lastTxNum + ") have not been decided yet");
 		
 		double dependentEndTime = maxOverDependentTxns(dependentTxns);
 		
-		for (int serverId = 0; serverId < serverCount; serverId++) {
-			Tuple features = serverFeatures[serverId];
-			double ou3EndTime = txnStartTime + predictLatencyTilOu3(serverId, features);
-			ou3EndTime = Math.max(dependentEndTime, ou3EndTime);
-			double totalEndTime = ou3EndTime + predictLatencyAfterOu3(serverId, features);
-
-			lastTxnEndTimePredictions[serverId] = totalEndTime;
-			latencyPredictions[serverId] = totalEndTime - txnStartTime;
+		int slot = emptyPendingSlot(txNum);
+		double[] endTimePredictions = pendingEndTimePredictions[slot];
+		if (serverPool != null) {
+			serverPool.invoke(new ServerPredictionTask(0, serverCount, serverFeatures,
+					txnStartTime, dependentEndTime, endTimePredictions, latencyPredictions));
+		} else {
+			for (int serverId = 0; serverId < serverCount; serverId++)
+				predictServer(serverId, serverFeatures[serverId], ouLatencies, txnStartTime,
+						dependentEndTime, endTimePredictions, latencyPredictions);
 		}
+		pendingTxNums[slot] = txNum;
+		pendingCount++;
 		lastTxNum = txNum;
-		lastRouteDecided = false;
+	}
+	
+	/**
+	 * Predicts the latencies of a batch of transactions on each server. It
+	 * gives the same predictions as calling
+	 * {@link #predictNextTxnLatency(long, List, long, double[][], double[])}
+	 * for each transaction in order, so a dependency on an earlier transaction
+	 * in the batch uses its predictions. All the transactions wait for their
+	 * routes afterwards, so the routing window must have room for the batch.
+	 * If any transaction fails, none of them are recorded.
+	 * 
+	 * @param txNums the transaction numbers in the increasing order
+	 * @param dependentTxns the dependencies of each transaction
+	 * @param txnStartTimes the start time of each transaction
+	 * @param serverFeatures the feature vectors of each transaction and server
+	 *                       in the order of {@link #featureNames()}
+	 * @return the latencies of each transaction and server
+	 */
+	public double[][] predictNextTxnLatencies(long[] txNums, List<List<Long>> dependentTxns,
+			long[] txnStartTimes, double[][][] serverFeatures) {
+		int txnCount = txNums.length;
+		for (int i = 0; i < txnCount; i++) {
+			long prevTxNum = (i == 0)? lastTxNum : txNums[i - 1];
+			if (txNums[i] <= prevTxNum)
+				throw new RuntimeException("Transaction features should be fed in the increasing order"
+						+ " (last tx: " + prevTxNum + ", current tx: " + txNums[i] + ")");
+		}
+		if (pendingCount + txnCount > routingWindow)
+			throw new RuntimeException("The routing window (" + routingWindow + ") cannot hold "
+					+ txnCount + " more transactions while " + pendingCount + " wait for their routes");
+		
+		// Run the models of each server over the whole batch
+		double[][] latenciesTilOu3 = new double[serverCount][txnCount];
+		double[][] latenciesAfterOu3 = new double[serverCount][txnCount];
+		double[][] features = new double[txnCount][];
+		double[][] batchOuLatencies = new double[Constants.OU_NAMES.length][txnCount];
+		for (int serverId = 0; serverId < serverCount; serverId++) {
+			for (int i = 0; i < txnCount; i++)
+				features[i] = serverFeatures[i][serverId];
+			serverOuModels.get(serverId).predict(PREDICTED_OUS, features, batchOuLatencies);
+			
+			for (int i = 0; i < txnCount; i++) {
+				for (OperatingUnit ou : PREDICTED_OUS)
+					ouLatencies[ou.ordinal()] = batchOuLatencies[ou.ordinal()][i];
+				latenciesTilOu3[serverId][i] = latencyTilOu3(ouLatencies);
+				latenciesAfterOu3[serverId][i] = latencyAfterOu3(ouLatencies);
+			}
+		}
+		
+		// Resolve the dependencies in order, since a transaction may depend
+		// on an earlier one in the batch. Nothing is recorded until all of
+		// them are resolved, so a failure leaves the model unchanged.
+		double[][] endTimePredictions = new double[txnCount][serverCount];
+		double[][] latencyPredictions = new double[txnCount][serverCount];
+		for (int i = 0; i < txnCount; i++) {
+			double dependentEndTime = maxOverDependentTxns(dependentTxns.get(i),
+					txNums, endTimePredictions, i);
+			
+			for (int serverId = 0; serverId < serverCount; serverId++) {
+				double ou3EndTime = txnStartTimes[i] + latenciesTilOu3[serverId][i];
+				ou3EndTime = Math.max(dependentEndTime, ou3EndTime);
+				double totalEndTime = ou3EndTime + latenciesAfterOu3[serverId][i];
+				
+				endTimePredictions[i][serverId] = totalEndTime;
+				latencyPredictions[i][serverId] = totalEndTime - txnStartTimes[i];
+			}
+		}
+		
+		// All the transactions wait for their routes
+		for (int i = 0; i < txnCount; i++) {
+			int slot = emptyPendingSlot(txNums[i]);
+			System.arraycopy(endTimePredictions[i], 0, pendingEndTimePredictions[slot], 0,
+					serverCount);
+			pendingTxNums[slot] = txNums[i];
+			pendingCount++;
+			lastTxNum = txNums[i];
+		}
 		
 		return latencyPredictions;
 	}
 	
+	/**
+	 * Predicts the servers of a transaction in parallel on the given pool
+	 * if the models are large enough to pay for the overhead of
+	 * splitting the work. Only {@link #predictNextTxnLatency} uses the pool.
+	 * 
+	 * @param minPredictionCost the minimal number of the tree nodes that the
+	 *                          models of all servers are expected to visit
+	 *                          for a transaction
+	 * @return whether the servers are predicted in parallel
+	 */
+	public boolean parallelizeServers(ForkJoinPool pool, double minPredictionCost) {
+		double predictionCost = 0.0;
+		for (SingleServerMasterModel model : serverOuModels)
+			predictionCost += model.predictionCost(PREDICTED_OUS);
+		
+		if (serverCount < 2 || pool.getParallelism() < 2 || predictionCost < minPredictionCost) {
+			serverPool = null;
+			serverOuLatencies = null;
+			return false;
+		}
+		
+		serverPool = pool;
+		serversPerTask = (serverCount + pool.getParallelism() - 1) / pool.getParallelism();
+		serverOuLatencies = new double[serverCount][Constants.OU_NAMES.length];
+		return true;
+	}
+	
 	public void decideLastTxnDest(long txNum, int routeDest) {
 		if (lastTxNum != txNum) {
 			throw new RuntimeException(String.format(
@@ -69,42 +269,199 @@ public class SumMaxSequentialModel {
 					lastTxNum, txNum));
 		}
 		
-		prevEndTimePredictions.put(lastTxNum, lastTxnEndTimePredictions[routeDest]);
-		lastRouteDecided = true;
+		decideTxnDest(txNum, routeDest);
+	}
+	
+	/**
+	 * Decides the route of any transaction that waits for its route.
+	 */
+	public void decideTxnDest(long txNum, int routeDest) {
+		int slot = findPendingSlot(txNum);
+		if (slot == -1)
+			throw new RuntimeException("The tx." + txNum + " does not wait for a route");
+		
+		prevEndTimePredictions.put(txNum, pendingEndTimePredictions[slot][routeDest]);
+		removePendingSlot(slot);
+		pendingCount--;
 	}
 	
 	public StructType schema() {
 		return serverOuModels.get(0).schema();
 	}
 	
-	private double predictLatencyTilOu3(int serverId, Tuple features) {
-		SingleServerMasterModel serverModel = serverOuModels.get(serverId);
-		double ou0b = serverModel.predict("OU0 - Broadcast", features);
-		double ou0r = serverModel.predict("OU0 - ROUTE", features);
-		double ou1 = serverModel.predict("OU1 - Generate Plan", features);
-		double ou2 = serverModel.predict("OU2 - Initialize Thread", features);
+	public int routingWindow() {
+		return routingWindow;
+	}
+	
+	public int serverCount() {
+		return serverCount;
+	}
+	
+	public String[] featureNames() {
+		return featureNames.clone();
+	}
+	
+	private void predictServer(int serverId, double[] features, double[] ouLatencies,
+			long txnStartTime, double dependentEndTime, double[] endTimePredictions,
+			double[] latencyPredictions) {
+		serverOuModels.get(serverId).predict(PREDICTED_OUS, features, ouLatencies);
+		double ou3EndTime = txnStartTime + latencyTilOu3(ouLatencies);
+		ou3EndTime = Math.max(dependentEndTime, ou3EndTime);
+		double totalEndTime = ou3EndTime + latencyAfterOu3(ouLatencies);
+		
+		endTimePredictions[serverId] = totalEndTime;
+		latencyPredictions[serverId] = totalEndTime - txnStartTime;
+	}
+	
+	private class ServerPredictionTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private int fromServerId, toServerId;
+		private double[][] serverFeatures;
+		private long txnStartTime;
+		private double dependentEndTime;
+		private double[] endTimePredictions;
+		private double[] latencyPredictions;
+		
+		ServerPredictionTask(int fromServerId, int toServerId, double[][] serverFeatures,
+				long txnStartTime, double dependentEndTime, double[] endTimePredictions,
+				double[] latencyPredictions) {
+			this.fromServerId = fromServerId;
+			this.toServerId = toServerId;
+			this.serverFeatures = serverFeatures;
+			this.txnStartTime = txnStartTime;
+			this.dependentEndTime = dependentEndTime;
+			this.endTimePredictions = endTimePredictions;
+			this.latencyPredictions = latencyPredictions;
+		}
+		
+		@Override
+		protected void compute() {
+			if (toServerId - fromServerId <= serversPerTask) {
+				for (int serverId = fromServerId; serverId < toServerId; serverId++)
+					predictServer(serverId, serverFeatures[serverId], serverOuLatencies[serverId],
+							txnStartTime, dependentEndTime, endTimePredictions, latencyPredictions);
+				return;
+			}
+			
+			int middle = (fromServerId + toServerId) >>> 1;
+			invokeAll(
+				new ServerPredictionTask(fromServerId, middle, serverFeatures, txnStartTime,
+						dependentEndTime, endTimePredictions, latencyPredictions),
+				new ServerPredictionTask(middle, toServerId, serverFeatures, txnStartTime,
+						dependentEndTime, endTimePredictions, latencyPredictions)
+			);
+		}
+	}
+	
+	static double latencyTilOu3(double[] ouLatencies) {
+		double ou0b = ouLatencies[OperatingUnit.OU0_BROADCAST.ordinal()];
+		double ou0r = ouLatencies[OperatingUnit.OU0_ROUTE.ordinal()];
+		double ou1 = ouLatencies[OperatingUnit.OU1_GENERATE_PLAN.ordinal()];
+		double ou2 = ouLatencies[OperatingUnit.OU2_INITIALIZE_THREAD.ordinal()];
 		return ou0b + ou0r + ou1 + ou2;
 	}
 	
 	private double maxOverDependentTxns(List<Long> dependentTxns) {
+		return maxOverDependentTxns(dependentTxns, null, null, 0);
+	}
+	
+	/**
+	 * Also looks up the first few transactions of a batch, which have been
+	 * predicted but do not wait for their routes yet.
+	 * 
+	 * @param batchTxNums the transaction numbers of the batch in the increasing order
+	 * @param batchEndTimePredictions the end times of each transaction and server
+	 * @param batchCount the number of the transactions to look up in the batch
+	 */
+	private double maxOverDependentTxns(List<Long> dependentTxns, long[] batchTxNums,
+			double[][] batchEndTimePredictions, int batchCount) {
 		double maxEndTime = 0.0;
-		for (Long dependentTxn : dependentTxns) {
-			Double prevEndTime = prevEndTimePredictions.get(dependentTxn);
-			if (prevEndTime == null) {
+		// Not using an iterator to avoid allocation
+		for (int i = 0; i < dependentTxns.size(); i++) {
+			long dependentTxn = dependentTxns.get(i);
+			double prevEndTime;
+			int batchIndex = (batchCount == 0)? -1 :
+				Arrays.binarySearch(batchTxNums, 0, batchCount, dependentTxn);
+			if (batchIndex >= 0)
+				prevEndTime = earliestEndTime(batchEndTimePredictions[batchIndex]);
+			else
+				prevEndTime = endTimePrediction(dependentTxn);
+			if (Double.isNaN(prevEndTime)) {
+				// Finished long before this transaction
+				if (prevEndTimePredictions.isEvicted(dependentTxn))
+					continue;
 				throw new RuntimeException("There is no record for " + dependentTxn);
 			}
-			maxEndTime = Math.max(maxEndTime, prevEndTime.doubleValue());
+			maxEndTime = Math.max(maxEndTime, prevEndTime);
 		}
 		return maxEndTime;
 	}
 	
-	private double predictLatencyAfterOu3(int serverId, Tuple features) {
-		SingleServerMasterModel serverModel = serverOuModels.get(serverId);
-		double ou4 = serverModel.predict("OU4 - Read from Local", features);
-		double ou5m = serverModel.predict("OU5M - Read from Remote", features);
-		double ou6 = serverModel.predict("OU6 - Execute Arithmetic Logic", features);
-		double ou7 = serverModel.predict("OU7 - Write to Local", features);
-		double ou8 = serverModel.predict("OU8 - Commit", features);
+	private double endTimePrediction(long txNum) {
+		// A transaction without a route may go to any server. Since the
+		// router usually picks the fastest one, take the earliest end time.
+		if (pendingCount > 0) {
+			int slot = findPendingSlot(txNum);
+			if (slot != -1)
+				return earliestEndTime(pendingEndTimePredictions[slot]);
+		}
+		return prevEndTimePredictions.get(txNum);
+	}
+	
+	private static double earliestEndTime(double[] endTimePredictions) {
+		double earliestEndTime = Double.MAX_VALUE;
+		for (double endTime : endTimePredictions)
+			earliestEndTime = Math.min(earliestEndTime, endTime);
+		return earliestEndTime;
+	}
+	
+	private int findPendingSlot(long txNum) {
+		for (int slot = (int) txNum & pendingMask; pendingTxNums[slot] != NO_TXN;
+				slot = (slot + 1) & pendingMask) {
+			if (pendingTxNums[slot] == txNum)
+				return slot;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Finds the slot for a transaction that does not wait for its route yet.
+	 */
+	private int emptyPendingSlot(long txNum) {
+		int slot = (int) txNum & pendingMask;
+		while (pendingTxNums[slot] != NO_TXN)
+			slot = (slot + 1) & pendingMask;
+		return slot;
+	}
+	
+	/**
+	 * Empties the slot and moves the following transactions of the same
+	 * probe sequence back, so that a lookup never stops before reaching them.
+	 */
+	private void removePendingSlot(int slot) {
+		int hole = slot;
+		for (int next = (hole + 1) & pendingMask; pendingTxNums[next] != NO_TXN;
+				next = (next + 1) & pendingMask) {
+			// Move it only if the hole is between its home slot and its slot
+			int home = (int) pendingTxNums[next] & pendingMask;
+			if (((next - home) & pendingMask) >= ((next - hole) & pendingMask)) {
+				pendingTxNums[hole] = pendingTxNums[next];
+				double[] endTimePredictions = pendingEndTimePredictions[hole];
+				pendingEndTimePredictions[hole] = pendingEndTimePredictions[next];
+				pendingEndTimePredictions[next] = endTimePredictions;
+				hole = next;
+			}
+		}
+		pendingTxNums[hole] = NO_TXN;
+	}
+	
+	static double latencyAfterOu3(double[] ouLatencies) {
+		double ou4 = ouLatencies[OperatingUnit.OU4_READ_FROM_LOCAL.ordinal()];
+		double ou5m = ouLatencies[OperatingUnit.OU5M_READ_FROM_REMOTE.ordinal()];
+		double ou6 = ouLatencies[OperatingUnit.OU6_EXECUTE_ARITHMETIC_LOGIC.ordinal()];
+		double ou7 = ouLatencies[OperatingUnit.OU7_WRITE_TO_LOCAL.ordinal()];
+		double ou8 = ouLatencies[OperatingUnit.OU8_COMMIT.ordinal()];
 		return ou4 + ou5m + ou6 + ou7 + ou8;
 	}
 }
@@ -1,10 +1,15 @@
 package org.elasql.estimator.model.evaluator;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
 import org.elasql.estimator.Constants;
 import org.elasql.estimator.data.OuDataSet;
 import org.elasql.estimator.model.SingleServerMasterModel;
 
-import smile.data.DataFrame;
 import smile.data.type.StructField;
 import smile.data.type.StructType;
 
@@ -21,32 +26,68 @@ public class OuModelEvaluator extends ModelEvaluator {
 		return new OuModelEvaluator(sb.toString());
 	}
 	
+	// Server ID -> Rows, which keeps the rows in the order of servers
+	// even if the servers are evaluated concurrently
+	private Map<Integer, List<String>> rowsByServer = new TreeMap<Integer, List<String>>();
+	
 	protected OuModelEvaluator(String header) {
 		super(header);
 	}
 	
+	/**
+	 * Evaluates the model of a server. It is safe to evaluate
+	 * different servers concurrently.
+	 */
 	public void evaluateModel(int serverId, OuDataSet dataSet,
 			SingleServerMasterModel model) {
-		DataFrame features = dataSet.getFeatures();
+		List<String> rows = new ArrayList<String>();
 		for (String ouName : Constants.OU_NAMES) {
-			double[] predictions = model.predict(ouName, features);
+			double[] predictions = predict(model, ouName, dataSet);
+			double[] labels = dataSet.getLabels(ouName);
 			
 			StringBuilder sb = new StringBuilder();
 			
 			sb.append(String.format("%d, %s, %d, %f, %f, %f, %f",
 				serverId,
 				ouName,
-				features.size(),
+				dataSet.size(),
 				dataSet.labelMean(ouName),
 				dataSet.labelStd(ouName),
-				calcMeanAbsoluteError(predictions, dataSet.getLabels(ouName)),
-				calcMeanRelativeError(predictions, dataSet.getLabels(ouName))
+				calcMeanAbsoluteError(predictions, labels),
+				calcMeanRelativeError(predictions, labels)
 			));
 			
 			for (double importance : model.importance(ouName))
 				sb.append(String.format(", %f", importance));
 			
-			reportBuilder.writeRow(sb.toString());
+			rows.add(sb.toString());
+		}
+		
+		synchronized (rowsByServer) {
+			rowsByServer.computeIfAbsent(serverId, id -> new ArrayList<String>()).addAll(rows);
+		}
+	}
+	
+	@Override
+	public void generateReport(File reportPath) {
+		synchronized (rowsByServer) {
+			for (List<String> rows : rowsByServer.values())
+				for (String row : rows)
+					reportBuilder.writeRow(row);
+			rowsByServer.clear();
+		}
+		super.generateReport(reportPath);
+	}
+	
+	// Predict part by part so that a composite data set is not copied
+	private double[] predict(SingleServerMasterModel model, String ouName, OuDataSet dataSet) {
+		double[] predictions = new double[dataSet.size()];
+		int rowOffset = 0;
+		for (OuDataSet part : dataSet.getParts()) {
+			double[] partPredictions = model.predict(ouName, part.getFeatures());
+			System.arraycopy(partPredictions, 0, predictions, rowOffset, partPredictions.length);
+			rowOffset += partPredictions.length;
 		}
+		return predictions;
 	}
 }
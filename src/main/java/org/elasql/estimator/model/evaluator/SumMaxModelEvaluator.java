@@ -7,8 +7,6 @@ import java.util.logging.Logger;
 import org.elasql.estimator.data.TotalLatencyDataSet;
 import org.elasql.estimator.model.SumMaxSequentialModel;
 
-import smile.data.Tuple;
-
 public class SumMaxModelEvaluator extends ModelEvaluator {
 	private static Logger logger = Logger.getLogger(SumMaxModelEvaluator.class.getName());
 	
@@ -31,10 +29,22 @@ public class SumMaxModelEvaluator extends ModelEvaluator {
 			SumMaxSequentialModel model) {
 		long testedCount = 0;
 		
+		// Reused for all transactions
+		String[] featureNames = model.featureNames();
+		double[][] features = new double[model.serverCount()][featureNames.length];
+		
+		// Routes are decided once the routing window is full, as a router
+		// that predicts a batch of transactions before routing them
+		int window = model.routingWindow();
+		long[] pendingTxNums = new long[window];
+		int[] pendingRoutes = new int[window];
+		double[][] pendingPredictions = new double[window][model.serverCount()];
+		int pendingHead = 0;
+		int pendingCount = 0;
+		
 		for (long txNum = dataSet.getStartTxNum(); txNum <= dataSet.getEndTxNum(); txNum++) {
 			Long boxedTxNum = txNum;
-			Tuple[] features = dataSet.getFeature(boxedTxNum);
-			if (features == null) {
+			if (!dataSet.getFeatureVectors(boxedTxNum, featureNames, features)) {
 				if (logger.isLoggable(Level.WARNING)) {
 					logger.warning(String.format("No feature data for transaction %d.",
 							txNum));
@@ -54,12 +64,19 @@ public class SumMaxModelEvaluator extends ModelEvaluator {
 				}
 			}
 			
-			double[] sumMaxPrediction = model.predictNextTxnLatency(
-					txNum, dependencies, startTime, features);
-			model.decideLastTxnDest(txNum, route);
-			Double trueLatency = dataSet.getLatency(boxedTxNum);
+			if (pendingCount == window) {
+				decideRoute(dataSet, model, pendingTxNums[pendingHead], pendingRoutes[pendingHead],
+						pendingPredictions[pendingHead]);
+				pendingHead = (pendingHead + 1) % window;
+				pendingCount--;
+			}
 			
-			writeRow(txNum, route, trueLatency, sumMaxPrediction);
+			int slot = (pendingHead + pendingCount) % window;
+			model.predictNextTxnLatency(txNum, dependencies, startTime,
+					features, pendingPredictions[slot]);
+			pendingTxNums[slot] = txNum;
+			pendingRoutes[slot] = route;
+			pendingCount++;
 			
 			testedCount++;
 			if (testedCount % 100000 == 0) {
@@ -69,6 +86,19 @@ public class SumMaxModelEvaluator extends ModelEvaluator {
 				}
 			}
 		}
+		
+		for (; pendingCount > 0; pendingCount--) {
+			decideRoute(dataSet, model, pendingTxNums[pendingHead], pendingRoutes[pendingHead],
+					pendingPredictions[pendingHead]);
+			pendingHead = (pendingHead + 1) % window;
+		}
+	}
+	
+	private void decideRoute(TotalLatencyDataSet dataSet, SumMaxSequentialModel model,
+			long txNum, int route, double[] predictions) {
+		model.decideTxnDest(txNum, route);
+		Double trueLatency = dataSet.getLatency(txNum);
+		writeRow(txNum, route, trueLatency, predictions);
 	}
 	
 	private void writeRow(long txNum, int route, double trueLatency, double[] predictions) {
@@ -0,0 +1,68 @@
+package org.elasql.estimator.utils;
+
+/**
+ * A stable LSD radix sort for primitive long keys. Instead of moving the keys,
+ * it produces the permutation of row indices that sorts the keys.
+ */
+public class RadixSort {
+
+	private static final int DIGIT_BITS = 16;
+	private static final int DIGIT_COUNT = Long.SIZE / DIGIT_BITS;
+	private static final int BUCKET_COUNT = 1 << DIGIT_BITS;
+	private static final int DIGIT_MASK = BUCKET_COUNT - 1;
+
+	/**
+	 * Returns the row indices of the first {@code size} keys in the ascending order
+	 * of the keys. Rows with the same key keep their original order.
+	 */
+	public static int[] sortedIndex(long[] keys, int size) {
+		// Count the occurrences of each digit for all passes at once
+		int[][] counts = new int[DIGIT_COUNT][BUCKET_COUNT];
+		for (int i = 0; i < size; i++) {
+			long key = toUnsigned(keys[i]);
+			for (int d = 0; d < DIGIT_COUNT; d++)
+				counts[d][digit(key, d)]++;
+		}
+
+		int[] index = new int[size];
+		for (int i = 0; i < size; i++)
+			index[i] = i;
+		int[] buffer = new int[size];
+
+		for (int d = 0; d < DIGIT_COUNT; d++) {
+			int[] count = counts[d];
+
+			// Skip the pass if all the keys have the same digit (e.g., high bits of IDs)
+			if (size == 0 || count[digit(toUnsigned(keys[0]), d)] == size)
+				continue;
+
+			// Turn the counts into the start positions of the buckets
+			int position = 0;
+			for (int b = 0; b < BUCKET_COUNT; b++) {
+				int c = count[b];
+				count[b] = position;
+				position += c;
+			}
+
+			for (int i = 0; i < size; i++) {
+				int row = index[i];
+				buffer[count[digit(toUnsigned(keys[row]), d)]++] = row;
+			}
+
+			int[] temp = index;
+			index = buffer;
+			buffer = temp;
+		}
+
+		return index;
+	}
+
+	// Flip the sign bit so that negative keys come first
+	private static long toUnsigned(long key) {
+		return key ^ Long.MIN_VALUE;
+	}
+
+	private static int digit(long key, int d) {
+		return (int) (key >>> (d * DIGIT_BITS)) & DIGIT_MASK;
+	}
+}
@@ -16,11 +16,11 @@ public class ReportBuilder {
 		this.header = header;
 	}
 	
-	public void writeRow(String row) {
+	public synchronized void writeRow(String row) {
 		rows.add(row);
 	}
 	
-	public void writeToFile(File outFilePath) throws IOException {
+	public synchronized void writeToFile(File outFilePath) throws IOException {
 		try (BufferedWriter writer = new BufferedWriter(new FileWriter(outFilePath))) {
 			writer.write(header);
 			writer.newLine();
@@ -0,0 +1,82 @@
+package org.elasql.estimator.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.IntConsumer;
+import java.util.function.IntToLongFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a job for each server concurrently. At most the given number of jobs
+ * run at the same time, and the estimated memory of the running jobs never
+ * exceeds the memory budget. A job that alone exceeds the budget runs
+ * when no other job is running.
+ */
+public class ServerJobScheduler {
+	private static Logger logger = Logger.getLogger(ServerJobScheduler.class.getName());
+
+	private static final long BYTES_PER_MB = 1024 * 1024;
+
+	private int maxConcurrentJobs;
+	private int memoryBudgetMb;
+
+	public ServerJobScheduler(int maxConcurrentJobs, int memoryBudgetMb) {
+		if (maxConcurrentJobs < 1)
+			throw new IllegalArgumentException("At least one job must be able to run");
+		if (memoryBudgetMb < 1)
+			throw new IllegalArgumentException("The memory budget must be positive");
+
+		this.maxConcurrentJobs = maxConcurrentJobs;
+		this.memoryBudgetMb = memoryBudgetMb;
+	}
+
+	/**
+	 * Runs the job of each server and waits until all of them finish.
+	 *
+	 * @param serverCount the number of servers
+	 * @param memoryEstimate the estimated number of bytes that the job of a server takes
+	 * @param job the job that takes a server ID
+	 */
+	public void runAll(int serverCount, IntToLongFunction memoryEstimate, IntConsumer job) {
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(maxConcurrentJobs, serverCount)));
+		Semaphore memory = new Semaphore(memoryBudgetMb, true);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>(serverCount);
+			for (int serverId = 0; serverId < serverCount; serverId++) {
+				int id = serverId;
+				int requiredMb = (int) Math.min(memoryBudgetMb,
+						Math.max(1, memoryEstimate.applyAsLong(id) / BYTES_PER_MB));
+				futures.add(executor.submit(() -> {
+					memory.acquireUninterruptibly(requiredMb);
+					try {
+						if (logger.isLoggable(Level.FINE))
+							logger.fine(String.format("Starting the job of server #%d (%d MB reserved)",
+									id, requiredMb));
+						job.accept(id);
+					} finally {
+						memory.release(requiredMb);
+					}
+				}));
+			}
+
+			for (Future<?> future : futures)
+				future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
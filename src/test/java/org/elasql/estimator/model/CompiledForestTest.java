@@ -0,0 +1,155 @@
+package org.elasql.estimator.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.stream.LongStream;
+
+import org.junit.Test;
+
+import smile.base.cart.InternalNode;
+import smile.base.cart.Node;
+import smile.base.cart.NominalNode;
+import smile.base.cart.OrdinalNode;
+import smile.data.DataFrame;
+import smile.data.Tuple;
+import smile.data.formula.Formula;
+import smile.data.measure.NominalScale;
+import smile.data.type.DataTypes;
+import smile.data.type.StructField;
+import smile.data.type.StructType;
+import smile.data.vector.BooleanVector;
+import smile.data.vector.DoubleVector;
+import smile.data.vector.IntVector;
+import smile.regression.RandomForest;
+import smile.regression.RegressionTree;
+
+public class CompiledForestTest {
+	
+	private static final int ROW_COUNT = 2000;
+	private static final int TREE_COUNT = 20;
+	
+	@Test
+	public void testPredictOrdinalSplits() {
+		Random random = new Random(1);
+		double[] x1 = new double[ROW_COUNT];
+		double[] x2 = new double[ROW_COUNT];
+		double[] y = new double[ROW_COUNT];
+		for (int i = 0; i < ROW_COUNT; i++) {
+			x1[i] = random.nextDouble() * 100;
+			x2[i] = random.nextGaussian();
+			y[i] = (x1[i] > 50? 10 : 0) + x2[i] * 3 + random.nextGaussian();
+		}
+		DataFrame df = DataFrame.of(DoubleVector.of("x1", x1), DoubleVector.of("x2", x2),
+				DoubleVector.of("y", y));
+		
+		RandomForest forest = fit(df);
+		assertTrue(hasSplit(forest, OrdinalNode.class, "x1"));
+		assertSamePredictions(forest, df);
+	}
+	
+	@Test
+	public void testPredictNominalSplits() {
+		Random random = new Random(2);
+		StructField nominalField = new StructField("n", DataTypes.IntegerType,
+				new NominalScale("a", "b", "c", "d"));
+		int[] n = new int[ROW_COUNT];
+		double[] x = new double[ROW_COUNT];
+		double[] y = new double[ROW_COUNT];
+		for (int i = 0; i < ROW_COUNT; i++) {
+			n[i] = random.nextInt(4);
+			x[i] = random.nextDouble();
+			y[i] = n[i] * n[i] * 5 + x[i] + random.nextGaussian();
+		}
+		DataFrame df = DataFrame.of(IntVector.of(nominalField, n), DoubleVector.of("x", x),
+				DoubleVector.of("y", y));
+		
+		RandomForest forest = fit(df);
+		assertTrue(hasSplit(forest, NominalNode.class, "n"));
+		assertSamePredictions(forest, df);
+	}
+	
+	@Test
+	public void testPredictBooleanSplits() {
+		Random random = new Random(3);
+		boolean[] b = new boolean[ROW_COUNT];
+		double[] x = new double[ROW_COUNT];
+		double[] y = new double[ROW_COUNT];
+		for (int i = 0; i < ROW_COUNT; i++) {
+			b[i] = random.nextBoolean();
+			x[i] = random.nextDouble();
+			y[i] = (b[i]? 20 : 0) + x[i] + random.nextGaussian();
+		}
+		DataFrame df = DataFrame.of(BooleanVector.of("b", b), DoubleVector.of("x", x),
+				DoubleVector.of("y", y));
+		
+		RandomForest forest = fit(df);
+		assertTrue(hasSplit(forest, OrdinalNode.class, "b"));
+		assertSamePredictions(forest, df);
+	}
+	
+	@Test
+	public void testBatchPredict() {
+		Random random = new Random(4);
+		double[] x = new double[ROW_COUNT];
+		double[] y = new double[ROW_COUNT];
+		for (int i = 0; i < ROW_COUNT; i++) {
+			x[i] = random.nextDouble();
+			y[i] = Math.sin(x[i] * 10) + random.nextGaussian() * 0.1;
+		}
+		DataFrame df = DataFrame.of(DoubleVector.of("x", x), DoubleVector.of("y", y));
+		
+		CompiledForest compiled = CompiledForest.compile(fit(df));
+		double[][] vectors = new double[ROW_COUNT][];
+		for (int i = 0; i < ROW_COUNT; i++)
+			vectors[i] = new double[] {x[i]};
+		double[] values = new double[ROW_COUNT];
+		compiled.predict(vectors, values);
+		for (int i = 0; i < ROW_COUNT; i++)
+			assertEquals(compiled.predict(vectors[i]), values[i], 0.0);
+	}
+	
+	private static RandomForest fit(DataFrame df) {
+		return RandomForest.fit(Formula.lhs("y"), df, TREE_COUNT, df.ncols() - 1, 8,
+				100, 5, 1.0, LongStream.range(2, 2 + TREE_COUNT));
+	}
+	
+	private static void assertSamePredictions(RandomForest forest, DataFrame df) {
+		CompiledForest compiled = CompiledForest.compile(forest);
+		StructType schema = forest.schema();
+		double[] vector = new double[schema.length()];
+		for (int rowId = 0; rowId < df.size(); rowId++) {
+			Tuple row = df.get(rowId);
+			for (int i = 0; i < vector.length; i++) {
+				int columnId = df.columnIndex(schema.field(i).name);
+				if (schema.field(i).type.isBoolean())
+					vector[i] = row.getBoolean(columnId)? 1.0 : 0.0;
+				else
+					vector[i] = row.getDouble(columnId);
+			}
+			assertEquals(forest.predict(row), compiled.predict(vector), 0.0);
+		}
+	}
+	
+	private static boolean hasSplit(RandomForest forest, Class<? extends InternalNode> nodeType,
+			String featureName) {
+		int featureId = forest.schema().fieldIndex(featureName);
+		for (RegressionTree tree : forest.trees()) {
+			if (hasSplit(tree.root(), nodeType, featureId))
+				return true;
+		}
+		return false;
+	}
+	
+	private static boolean hasSplit(Node node, Class<? extends InternalNode> nodeType,
+			int featureId) {
+		if (!(node instanceof InternalNode))
+			return false;
+		InternalNode internal = (InternalNode) node;
+		if (nodeType.isInstance(internal) && internal.feature() == featureId)
+			return true;
+		return hasSplit(internal.trueChild(), nodeType, featureId)
+				|| hasSplit(internal.falseChild(), nodeType, featureId);
+	}
+}
@@ -0,0 +1,105 @@
+package org.elasql.estimator.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class ConcurrentEndTimeWindowTest {
+	
+	private static final int HORIZON = 8;
+	private static final int ROUND_COUNT = 20_000;
+	private static final int WRITER_COUNT = 4;
+	private static final int READER_COUNT = 4;
+	private static final long TXN_COUNT = 200_000;
+	
+	@Test
+	public void testNewerRecordSurvivesConcurrentPut() throws Exception {
+		ConcurrentEndTimeWindow window = new ConcurrentEndTimeWindow(HORIZON);
+		CyclicBarrier barrier = new CyclicBarrier(2);
+		
+		// In each round, the two threads put two transactions of the same slot
+		// at the same time, and the older one must not overwrite the newer one
+		runAll(2, threadId -> {
+			for (int round = 0; round < ROUND_COUNT; round++) {
+				long olderTxNum = 1 + 2L * HORIZON * round;
+				long newerTxNum = olderTxNum + HORIZON;
+				long txNum = (threadId == 0)? olderTxNum : newerTxNum;
+				
+				barrier.await(10, TimeUnit.SECONDS);
+				window.put(txNum, endTime(txNum));
+				barrier.await(10, TimeUnit.SECONDS);
+				
+				assertEquals(endTime(newerTxNum), window.get(newerTxNum), 0.0);
+				assertTrue(Double.isNaN(window.get(olderTxNum)));
+			}
+			return null;
+		});
+	}
+	
+	@Test
+	public void testGetNeverReturnsAnotherTransaction() throws Exception {
+		ConcurrentEndTimeWindow window = new ConcurrentEndTimeWindow(HORIZON);
+		AtomicLong nextTxNum = new AtomicLong(1);
+		
+		// The writers put the transactions slightly out of order, while the
+		// readers look up the recent ones whose slots are being reused
+		runAll(WRITER_COUNT + READER_COUNT, threadId -> {
+			if (threadId < WRITER_COUNT) {
+				for (long txNum = nextTxNum.getAndIncrement(); txNum <= TXN_COUNT;
+						txNum = nextTxNum.getAndIncrement())
+					window.put(txNum, endTime(txNum));
+			} else {
+				Random random = new Random(threadId);
+				while (nextTxNum.get() <= TXN_COUNT) {
+					long txNum = nextTxNum.get() - random.nextInt(2 * HORIZON);
+					double endTime = window.get(txNum);
+					if (!Double.isNaN(endTime))
+						assertEquals(endTime(txNum), endTime, 0.0);
+				}
+			}
+			return null;
+		});
+		
+		for (long txNum = TXN_COUNT - HORIZON + 1; txNum <= TXN_COUNT; txNum++)
+			assertEquals(endTime(txNum), window.get(txNum), 0.0);
+	}
+	
+	private static double endTime(long txNum) {
+		return txNum * 10.0 + 0.5;
+	}
+	
+	interface Worker {
+		Void run(int threadId) throws Exception;
+	}
+	
+	/**
+	 * Runs the worker on the given number of threads and rethrows the first
+	 * failure of them.
+	 */
+	static void runAll(int threadCount, Worker worker) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int threadId = 0; threadId < threadCount; threadId++) {
+				int id = threadId;
+				futures.add(executor.submit((Callable<Void>) () -> worker.run(id)));
+			}
+			for (Future<Void> future : futures)
+				future.get();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package org.elasql.estimator.model;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ConcurrentSumMaxModelTest {
+	
+	private static final int SERVER_COUNT = 3;
+	private static final int END_TIME_HORIZON = 16;
+	private static final int ROUND_COUNT = 5_000;
+	
+	/**
+	 * A transaction is decided while another transaction looks it up as a
+	 * dependency, so the lookup may see it pending, decided or both. It is
+	 * routed to its fastest server, so every case gives the end time that
+	 * {@link SumMaxSequentialModel} predicts.
+	 */
+	@Test
+	public void testDecideRacesDependencyLookup() throws Exception {
+		List<SingleServerMasterModel> models = TestModels.randomModels(SERVER_COUNT);
+		ConcurrentSumMaxModel model = new ConcurrentSumMaxModel(models, END_TIME_HORIZON);
+		SumMaxSequentialModel expectedModel = new SumMaxSequentialModel(models,
+				END_TIME_HORIZON, 1);
+		
+		Random random = new Random(1);
+		double[][][] serverFeatures = new double[ROUND_COUNT * 2][][];
+		for (int i = 0; i < serverFeatures.length; i++)
+			serverFeatures[i] = TestModels.randomFeatures(random, SERVER_COUNT);
+		
+		CyclicBarrier barrier = new CyclicBarrier(2);
+		ConcurrentEndTimeWindowTest.runAll(2, threadId -> {
+			double[] latencies = new double[SERVER_COUNT];
+			double[] expectedLatencies = new double[SERVER_COUNT];
+			for (int round = 0; round < ROUND_COUNT; round++) {
+				long txNum = 1 + 2L * round;
+				long dependentTxNum = txNum + 1;
+				List<Long> dependencies = Collections.singletonList(txNum);
+				
+				if (threadId == 0) {
+					model.predictTxnLatency(txNum, Collections.emptyList(), txNum,
+							serverFeatures[(int) txNum - 1], latencies);
+					barrier.await(10, TimeUnit.SECONDS);
+					model.decideTxnDest(txNum, minIndex(latencies));
+					barrier.await(10, TimeUnit.SECONDS);
+				} else {
+					expectedModel.predictNextTxnLatency(txNum, Collections.emptyList(), txNum,
+							serverFeatures[(int) txNum - 1], expectedLatencies);
+					expectedModel.decideLastTxnDest(txNum, minIndex(expectedLatencies));
+					expectedModel.predictNextTxnLatency(dependentTxNum, dependencies, txNum,
+							serverFeatures[(int) dependentTxNum - 1], expectedLatencies);
+					expectedModel.decideLastTxnDest(dependentTxNum, 0);
+					
+					barrier.await(10, TimeUnit.SECONDS);
+					model.predictTxnLatency(dependentTxNum, dependencies, txNum,
+							serverFeatures[(int) dependentTxNum - 1], latencies);
+					barrier.await(10, TimeUnit.SECONDS);
+					model.decideTxnDest(dependentTxNum, 0);
+					assertArrayEquals(expectedLatencies, latencies, 0.0);
+				}
+			}
+			return null;
+		});
+	}
+	
+	private static int minIndex(double[] values) {
+		int minIndex = 0;
+		for (int i = 1; i < values.length; i++) {
+			if (values[i] < values[minIndex])
+				minIndex = i;
+		}
+		return minIndex;
+	}
+}
@@ -0,0 +1,168 @@
+package org.elasql.estimator.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SumMaxSequentialModelTest {
+	
+	private static final int SERVER_COUNT = 3;
+	private static final int END_TIME_HORIZON = 1000;
+	private static final int BATCH_SIZE = 8;
+	private static final int MAX_DEPENDENCY_DISTANCE = 12;
+	
+	private static final List<SingleServerMasterModel> MODELS =
+			TestModels.randomModels(SERVER_COUNT);
+	
+	@Test
+	public void testBatchMatchesSequentialPredictions() {
+		SumMaxSequentialModel batchModel = new SumMaxSequentialModel(MODELS,
+				END_TIME_HORIZON, BATCH_SIZE);
+		SumMaxSequentialModel sequentialModel = new SumMaxSequentialModel(MODELS,
+				END_TIME_HORIZON, BATCH_SIZE);
+		Random random = new Random(1);
+		
+		for (long firstTxNum = 1; firstTxNum < 400; firstTxNum += BATCH_SIZE) {
+			Batch batch = randomBatch(random, firstTxNum, BATCH_SIZE);
+			double[][] batchLatencies = batchModel.predictNextTxnLatencies(batch.txNums,
+					batch.dependentTxns, batch.txnStartTimes, batch.serverFeatures);
+			
+			double[] latencies = new double[SERVER_COUNT];
+			for (int i = 0; i < BATCH_SIZE; i++) {
+				sequentialModel.predictNextTxnLatency(batch.txNums[i], batch.dependentTxns.get(i),
+						batch.txnStartTimes[i], batch.serverFeatures[i], latencies);
+				assertArrayEquals(latencies, batchLatencies[i], 0.0);
+			}
+			
+			// Decide the routes out of order
+			for (int i = BATCH_SIZE - 1; i >= 0; i--) {
+				int routeDest = random.nextInt(SERVER_COUNT);
+				batchModel.decideTxnDest(batch.txNums[i], routeDest);
+				sequentialModel.decideTxnDest(batch.txNums[i], routeDest);
+			}
+		}
+	}
+	
+	@Test
+	public void testFailedBatchLeavesModelUnchanged() {
+		SumMaxSequentialModel model = new SumMaxSequentialModel(MODELS,
+				END_TIME_HORIZON, BATCH_SIZE);
+		SumMaxSequentialModel untouchedModel = new SumMaxSequentialModel(MODELS,
+				END_TIME_HORIZON, BATCH_SIZE);
+		Random random = new Random(2);
+		
+		Batch history = randomBatch(random, 1, BATCH_SIZE);
+		for (SumMaxSequentialModel m : new SumMaxSequentialModel[] {model, untouchedModel}) {
+			m.predictNextTxnLatencies(history.txNums, history.dependentTxns,
+					history.txnStartTimes, history.serverFeatures);
+			for (long txNum : history.txNums)
+				m.decideTxnDest(txNum, 0);
+		}
+		
+		// The last transaction depends on a transaction that was never predicted
+		Batch batch = randomBatch(random, BATCH_SIZE + 1, BATCH_SIZE);
+		List<Long> badDependencies = new ArrayList<Long>(batch.dependentTxns.get(BATCH_SIZE - 1));
+		badDependencies.add(batch.txNums[BATCH_SIZE - 1] + END_TIME_HORIZON);
+		List<List<Long>> dependentTxns = new ArrayList<List<Long>>(batch.dependentTxns);
+		dependentTxns.set(BATCH_SIZE - 1, badDependencies);
+		assertThrows(RuntimeException.class, () -> model.predictNextTxnLatencies(batch.txNums,
+				dependentTxns, batch.txnStartTimes, batch.serverFeatures));
+		
+		// The same transactions can be predicted again, and the routing window
+		// still has room for all of them
+		double[][] retriedLatencies = model.predictNextTxnLatencies(batch.txNums,
+				batch.dependentTxns, batch.txnStartTimes, batch.serverFeatures);
+		double[][] expectedLatencies = untouchedModel.predictNextTxnLatencies(batch.txNums,
+				batch.dependentTxns, batch.txnStartTimes, batch.serverFeatures);
+		for (int i = 0; i < BATCH_SIZE; i++)
+			assertArrayEquals(expectedLatencies[i], retriedLatencies[i], 0.0);
+	}
+	
+	/**
+	 * Skips some transaction numbers so that the pending transactions collide
+	 * in their slots, and decides them in random order. The predictions must
+	 * match {@link ConcurrentSumMaxModel}, which keeps them in a map.
+	 */
+	@Test
+	public void testRoutesDecidedInRandomOrder() {
+		int routingWindow = 16;
+		SumMaxSequentialModel model = new SumMaxSequentialModel(MODELS, 1 << 16, routingWindow);
+		ConcurrentSumMaxModel expectedModel = new ConcurrentSumMaxModel(MODELS, 1 << 16);
+		Random random = new Random(3);
+		
+		List<Long> predictedTxns = new ArrayList<Long>();
+		List<Long> pendingTxns = new ArrayList<Long>();
+		double[] latencies = new double[SERVER_COUNT];
+		double[] expectedLatencies = new double[SERVER_COUNT];
+		long txNum = 0;
+		for (int i = 0; i < 2000; i++) {
+			txNum += 1 + random.nextInt(routingWindow);
+			List<Long> dependencies = new ArrayList<Long>();
+			for (int j = Math.max(0, predictedTxns.size() - 8); j < predictedTxns.size(); j++) {
+				if (random.nextInt(3) == 0)
+					dependencies.add(predictedTxns.get(j));
+			}
+			double[][] serverFeatures = TestModels.randomFeatures(random, SERVER_COUNT);
+			
+			model.predictNextTxnLatency(txNum, dependencies, txNum * 20, serverFeatures, latencies);
+			expectedModel.predictTxnLatency(txNum, dependencies, txNum * 20, serverFeatures,
+					expectedLatencies);
+			assertArrayEquals(expectedLatencies, latencies, 0.0);
+			predictedTxns.add(txNum);
+			pendingTxns.add(txNum);
+			
+			while (pendingTxns.size() == routingWindow
+					|| (!pendingTxns.isEmpty() && random.nextBoolean())) {
+				long decidedTxn = pendingTxns.remove(random.nextInt(pendingTxns.size()));
+				int routeDest = random.nextInt(SERVER_COUNT);
+				model.decideTxnDest(decidedTxn, routeDest);
+				expectedModel.decideTxnDest(decidedTxn, routeDest);
+			}
+		}
+		
+		for (long pendingTxn : pendingTxns)
+			model.decideTxnDest(pendingTxn, 0);
+		long decidedTxn = txNum;
+		assertThrows(RuntimeException.class, () -> model.decideTxnDest(decidedTxn, 0));
+	}
+	
+	private static class Batch {
+		long[] txNums;
+		List<List<Long>> dependentTxns;
+		long[] txnStartTimes;
+		double[][][] serverFeatures;
+	}
+	
+	/**
+	 * Each transaction depends on a few recent transactions, which may be in
+	 * the same batch. The transactions start close enough to each other that
+	 * the dependencies delay them.
+	 */
+	private static Batch randomBatch(Random random, long firstTxNum, int txnCount) {
+		Batch batch = new Batch();
+		batch.txNums = new long[txnCount];
+		batch.dependentTxns = new ArrayList<List<Long>>(txnCount);
+		batch.txnStartTimes = new long[txnCount];
+		batch.serverFeatures = new double[txnCount][][];
+		for (int i = 0; i < txnCount; i++) {
+			long txNum = firstTxNum + i;
+			List<Long> dependencies = new ArrayList<Long>();
+			for (long dependentTxn = Math.max(1, txNum - MAX_DEPENDENCY_DISTANCE);
+					dependentTxn < txNum; dependentTxn++) {
+				if (random.nextInt(4) == 0)
+					dependencies.add(dependentTxn);
+			}
+			
+			batch.txNums[i] = txNum;
+			batch.dependentTxns.add(dependencies);
+			batch.txnStartTimes[i] = txNum * 20;
+			batch.serverFeatures[i] = TestModels.randomFeatures(random, SERVER_COUNT);
+		}
+		return batch;
+	}
+}
@@ -0,0 +1,73 @@
+package org.elasql.estimator.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.LongStream;
+
+import org.elasql.estimator.Constants;
+
+import smile.data.DataFrame;
+import smile.data.formula.Formula;
+import smile.data.vector.DoubleVector;
+import smile.regression.RandomForest;
+
+/**
+ * Trains small synthetic models for the tests of the sum-max models.
+ */
+final class TestModels {
+	
+	static final int FEATURE_COUNT = 4;
+	
+	private static final int TRAINING_ROW_COUNT = 300;
+	private static final int TREE_COUNT = 4;
+	private static final int MAX_DEPTH = 6;
+	
+	static List<SingleServerMasterModel> randomModels(int serverCount) {
+		List<SingleServerMasterModel> models = new ArrayList<SingleServerMasterModel>();
+		for (int serverId = 0; serverId < serverCount; serverId++)
+			models.add(randomModel(new Random(serverId)));
+		return models;
+	}
+	
+	static double[][] randomFeatures(Random random, int serverCount) {
+		double[][] serverFeatures = new double[serverCount][FEATURE_COUNT];
+		for (double[] features : serverFeatures) {
+			for (int i = 0; i < features.length; i++)
+				features[i] = random.nextDouble();
+		}
+		return serverFeatures;
+	}
+	
+	private static SingleServerMasterModel randomModel(Random random) {
+		DoubleVector[] features = new DoubleVector[FEATURE_COUNT];
+		double[][] values = new double[FEATURE_COUNT][TRAINING_ROW_COUNT];
+		for (int i = 0; i < FEATURE_COUNT; i++) {
+			for (int rowId = 0; rowId < TRAINING_ROW_COUNT; rowId++)
+				values[i][rowId] = random.nextDouble();
+			features[i] = DoubleVector.of("x" + i, values[i]);
+		}
+		
+		Map<String, RandomForest> forests = new HashMap<String, RandomForest>();
+		for (int ouId = 0; ouId < Constants.OU_NAMES.length; ouId++) {
+			double[] labels = new double[TRAINING_ROW_COUNT];
+			for (int rowId = 0; rowId < TRAINING_ROW_COUNT; rowId++) {
+				labels[rowId] = 100 * values[ouId % FEATURE_COUNT][rowId]
+						+ random.nextGaussian();
+			}
+			DoubleVector[] columns = Arrays.copyOf(features, FEATURE_COUNT + 1);
+			columns[FEATURE_COUNT] = DoubleVector.of(Constants.OU_NAMES[ouId], labels);
+			forests.put(Constants.OU_NAMES[ouId], RandomForest.fit(
+					Formula.lhs(Constants.OU_NAMES[ouId]), DataFrame.of(columns), TREE_COUNT,
+					2, MAX_DEPTH, 100, 5, 1.0,
+					LongStream.range(2 + ouId * TREE_COUNT, 2 + (ouId + 1) * TREE_COUNT)));
+		}
+		return new SingleServerMasterModel(forests);
+	}
+	
+	private TestModels() {
+	}
+}